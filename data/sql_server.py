@@ -29,17 +29,51 @@ import sqlite3
 SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
+# One SQLite connection per worker thread, opened on first use and kept for the
+# lifetime of the thread instead of reconnecting on every statement.
+_local = threading.local()
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
+
+def _configure(conn: sqlite3.Connection):
+    """Per-connection pragmas (journal_mode=WAL is persistent and set once in init_database)."""
+    cur = conn.cursor()
+    cur.execute("PRAGMA synchronous=NORMAL")      # safe with WAL, no fsync per commit
+    cur.execute("PRAGMA busy_timeout=5000")       # workers wait on each other's write locks
+    cur.execute("PRAGMA temp_store=MEMORY")
+    cur.execute("PRAGMA cache_size=-8192")        # 8 MB page cache
+
+
+def get_connection() -> sqlite3.Connection:
+    conn = getattr(_local, "conn", None)
+    if conn is None:
+        conn = sqlite3.connect(DB_FILE)
+        _configure(conn)
+        _local.conn = conn
+    return conn
+
+
+def close_connection():
+    conn = getattr(_local, "conn", None)
+    if conn is not None:
+        try:
+            conn.close()
+        except Exception:
+            pass
+        _local.conn = None
+
+
+def recv_null_terminated(sock: socket.socket, pending: bytearray) -> str:
+    """Reads one message; bytes after its terminator stay in `pending` for the next call."""
     while True:
-        chunk = sock.recv(1024)
+        idx = pending.find(b"\0")
+        if idx >= 0:
+            msg = bytes(pending[:idx])
+            del pending[:idx + 1]
+            return msg.decode("utf-8", errors="replace")
+        chunk = sock.recv(4096)
         if not chunk:
             return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+        pending += chunk
 
 
 def init_database():
@@ -47,6 +81,9 @@ def init_database():
     conn = sqlite3.connect(DB_FILE)
     cur = conn.cursor()
 
+    # Write-ahead logging: readers (report) no longer block on writers (login/logout)
+    cur.execute("PRAGMA journal_mode=WAL")
+
     # Users (must store password for STOMP login semantics)
     cur.execute(
         "CREATE TABLE IF NOT EXISTS users ("
@@ -78,6 +115,23 @@ def init_database():
         ")"
     )
 
+    # Partial index over open sessions only: logLogout looks up the newest session of
+    # a user with logout_time IS NULL, so it stays small however long the history gets.
+    cur.execute(
+        "CREATE INDEX IF NOT EXISTS idx_sessions_open "
+        "ON sessions(username, id) WHERE logout_time IS NULL"
+    )
+
+    # Covering indexes for the per-user report queries (filter by username, order by id)
+    cur.execute(
+        "CREATE INDEX IF NOT EXISTS idx_sessions_user "
+        "ON sessions(username, id, login_time, logout_time)"
+    )
+    cur.execute(
+        "CREATE INDEX IF NOT EXISTS idx_file_logs_user "
+        "ON file_logs(username, id, filename, game_channel, upload_time)"
+    )
+
     # --- Minimal migration support (if a previous table existed without password) ---
     try:
         cur.execute("PRAGMA table_info(users)")
@@ -90,6 +144,7 @@ def init_database():
         # If migration fails, we still keep going; this is best-effort.
         pass
 
+    cur.execute("ANALYZE")
     conn.commit()
     conn.close()
     print(f"[{SERVER_NAME}] Database initialized at '{DB_FILE}'.")
@@ -111,8 +166,9 @@ def _error(msg: str) -> str:
 
 
 def execute_sql(sql: str) -> str:
+    conn = None
     try:
-        conn = sqlite3.connect(DB_FILE)
+        conn = get_connection()
         cur = conn.cursor()
 
         sql_stripped = sql.strip()
@@ -122,26 +178,26 @@ def execute_sql(sql: str) -> str:
 
         if is_select:
             rows = cur.fetchall()
-            conn.close()
             return _success(rows)
 
         conn.commit()
-        conn.close()
         return _success()
 
     except Exception as e:
-        try:
-            conn.close()
-        except Exception:
-            pass
+        if conn is not None:
+            try:
+                conn.rollback()
+            except Exception:
+                close_connection()
         return _error(str(e))
 
 
 def handle_client(client_socket: socket.socket, addr):
     print(f"[{SERVER_NAME}] Client connected from {addr}")
+    pending = bytearray()
     try:
         while True:
-            message = recv_null_terminated(client_socket)
+            message = recv_null_terminated(client_socket, pending)
             if not message:
                 break
 
@@ -152,6 +208,7 @@ def handle_client(client_socket: socket.socket, addr):
     except Exception as e:
         print(f"[{SERVER_NAME}] Error: {e}")
     finally:
+        close_connection()
         try:
             client_socket.close()
         except Exception:
@@ -19,4 +19,11 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * @return the bytes of a heart-beat, which the peer skips between messages
+     */
+    default byte[] heartbeat() {
+        return new byte[]{'\n'};
+    }
+
 }
@@ -3,6 +3,13 @@ package bgu.spl.net.api;
 import bgu.spl.net.srv.Connections;
 
 public interface StompMessagingProtocol<T> extends MessagingProtocol<T> {
+	/**
+	 * Called before start with the connection's decoder, for a protocol that has it decode frames straight
+	 * into the protocol's own form
+	**/
+    default void attach(MessageEncoderDecoder<T> decoder) {
+    }
+
 	/**
 	 * Used to initiate the current client protocol with it's personal connection ID and the connections implementation
 	**/
@@ -14,4 +21,14 @@ public interface StompMessagingProtocol<T> extends MessagingProtocol<T> {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+	/**
+	 * Called once the connection is gone, whether the client said goodbye or not
+	**/
+    void onClose();
+
+	/**
+	 * Called on the connection's actor when the server drains for a restart: tell the client and end the session
+	**/
+    void onDrain();
 }
@@ -0,0 +1,570 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process persistence for single-node deployments: no sidecar, no SQL, no IPC.
+ * State lives in maps keyed by username. Every change is appended to a journal before it is applied;
+ * once the journal grows past {@link #SNAPSHOT_EVERY} records the whole state is written to a snapshot
+ * and the journal starts over. Startup loads the snapshot and replays the journal on top of it.
+ * <p>
+ * Callers only queue their changes. One writer thread appends whatever has queued up, syncs the journal
+ * once for the whole batch, and only then applies the changes and completes their futures, so a burst
+ * of logins costs one disk sync rather than one each and no caller waits on the disk.
+ * <p>
+ * Both files open with a generation record. A snapshot carries the generation it starts, and a journal
+ * the generation it was written under, so a journal older than the snapshot is known to be folded into
+ * it already and is not replayed a second time. To take a snapshot the writer copies the state, moves
+ * the journal aside and starts a new one of the next generation; a background thread writes the copy
+ * and then deletes the old journal, which startup replays as well if a crash came first. A crash while
+ * appending can leave the journal's last record torn; startup drops it, but a bad record anywhere
+ * else stops it.
+ */
+public class EmbeddedDatabase implements Database {
+
+    private static final int SNAPSHOT_EVERY = 10000;
+    private static final DateTimeFormatter TS_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // record kinds, shared by the journal and the snapshot
+    private static final String USER = "U";
+    private static final String LOGIN = "I";
+    private static final String LOGOUT = "O";
+    private static final String FILE = "F";
+    private static final String GENERATION = "G";
+
+    /**
+     * A change waiting for the writer; one without fields asks for a snapshot
+     */
+    private static class Pending {
+        final String[] fields;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        Pending(String[] fields) {
+            this.fields = fields;
+        }
+    }
+
+    private static class Session {
+        final String login;
+        String logout;
+
+        Session(String login, String logout) {
+            this.login = login;
+            this.logout = logout;
+        }
+    }
+
+    private static class FileLog {
+        final String filename;
+        final String channel;
+        final String time;
+
+        FileLog(String filename, String channel, String time) {
+            this.filename = filename;
+            this.channel = channel;
+            this.time = time;
+        }
+    }
+
+    // all guarded by this
+    private final Map<String, String> passwords = new TreeMap<>();
+    private final Map<String, List<Session>> sessions = new TreeMap<>();
+    private final Map<String, List<FileLog>> files = new TreeMap<>();
+    // users whose registration is queued but not yet written
+    private final Set<String> registering = new HashSet<>();
+    private CompletableFuture<Boolean> lastQueued = CompletableFuture.completedFuture(true);
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final File snapshotFile;
+    private final File journalFile;
+    // the journal a snapshot in progress replaces
+    private final File previousJournalFile;
+    private volatile boolean snapshotting = false;
+
+    // owned by the writer thread once it starts
+    private FileOutputStream journalOut;
+    private Writer journal;
+    private int journalRecords = 0;
+    private long generation;
+
+    EmbeddedDatabase(String dir) {
+        File base = new File(dir);
+        base.mkdirs();
+        this.snapshotFile = new File(base, "stomp_server.snapshot");
+        this.journalFile = new File(base, "stomp_server.journal");
+        this.previousJournalFile = new File(base, "stomp_server.journal.prev");
+        try {
+            generation = readGeneration(snapshotFile);
+            load(snapshotFile, false);
+            boolean interrupted = previousJournalFile.exists();
+            if (interrupted && readGeneration(previousJournalFile) >= generation) {
+                // the snapshot that was to replace it never made it to disk
+                load(previousJournalFile, true);
+            }
+            long journalGeneration = readGeneration(journalFile);
+            if (journalGeneration >= generation) {
+                journalRecords = load(journalFile, true);
+                generation = journalGeneration;
+                journal = openJournal(true);
+            } else {
+                // left behind by a crash between writing the snapshot and restarting the journal
+                journal = openJournal(false);
+            }
+            if (interrupted) {
+                // finish what the interrupted snapshot started before a new one can move the journal aside
+                writeSnapshot(state(), ++generation);
+                restartJournal();
+                Files.delete(previousJournalFile.toPath());
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot open embedded database in " + base, ex);
+        }
+        Thread writer = new Thread(this::writeLoop, "EmbeddedDatabase");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public synchronized CompletableFuture<String> getPassword(String username) {
+        return CompletableFuture.completedFuture(passwords.get(username));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> registerUser(String username, String password) {
+        if (passwords.containsKey(username) || !registering.add(username)) return CompletableFuture.completedFuture(false);
+        return record(USER, username, password);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> logLogin(String username) {
+        return record(LOGIN, username, now());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> logLogout(String username) {
+        return record(LOGOUT, username, now());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> trackFileUpload(String username, String filename, String gameChannel) {
+        return record(FILE, username, filename, gameChannel, now());
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> flush() {
+        // the writer takes changes in the order they were queued
+        return lastQueued.thenAccept(ok -> {});
+    }
+
+    @Override
+    public synchronized void printReport() {
+        System.out.println("\n========== SERVER EMBEDDED REPORT (" + LocalDateTime.now() + ") ==========");
+
+        System.out.println("\n1) Registered users:");
+        if (passwords.isEmpty()) {
+            System.out.println("   (none)");
+            System.out.println("======================================================\n");
+            return;
+        }
+        for (String user : passwords.keySet()) {
+            System.out.println("   - " + user);
+        }
+
+        System.out.println("\n2) Login history:");
+        for (String user : passwords.keySet()) {
+            System.out.println("\n   User: " + user);
+            List<Session> sess = sessions.get(user);
+            if (sess == null || sess.isEmpty()) {
+                System.out.println("      (no sessions)");
+            } else {
+                for (Session s : sess) {
+                    System.out.println("      login=" + s.login + " logout=" + (s.logout == null ? "(still logged in)" : s.logout));
+                }
+            }
+        }
+
+        System.out.println("\n3) Filenames uploaded via report:");
+        for (String user : passwords.keySet()) {
+            System.out.println("\n   User: " + user);
+            List<FileLog> logs = files.get(user);
+            if (logs == null || logs.isEmpty()) {
+                System.out.println("      (no files)");
+            } else {
+                for (FileLog f : logs) {
+                    System.out.println("      file='" + f.filename + "' channel='" + f.channel + "' time=" + f.time);
+                }
+            }
+        }
+
+        System.out.println("======================================================\n");
+    }
+
+    private String now() {
+        return LocalDateTime.now().format(TS_FMT);
+    }
+
+    /**
+     * @return completes once the change is on disk and applied, false if the journal could not take it
+     */
+    private synchronized CompletableFuture<Boolean> record(String... fields) {
+        Pending change = new Pending(fields);
+        queue.add(change);
+        lastQueued = change.done;
+        return change.done;
+    }
+
+    /**
+     * Asks the writer for a snapshot between the changes queued before and after this call
+     *
+     * @return completes once the snapshot is on disk, false if it was not taken
+     */
+    synchronized CompletableFuture<Boolean> snapshot() {
+        Pending request = new Pending(null);
+        queue.add(request);
+        return request.done;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+            int from = 0;
+            for (int i = 0; i <= batch.size(); i++) {
+                if (i == batch.size() || batch.get(i).fields == null) {
+                    commit(batch.subList(from, i));
+                    if (i < batch.size()) startSnapshot(batch.get(i).done);
+                    from = i + 1;
+                }
+            }
+            batch.clear();
+            if (journalRecords >= SNAPSHOT_EVERY && !snapshotting) {
+                startSnapshot(new CompletableFuture<>());
+            }
+        }
+    }
+
+    /**
+     * Appends the changes, syncs the journal once for all of them, then applies them
+     */
+    private void commit(List<Pending> changes) {
+        if (changes.isEmpty()) return;
+        boolean written;
+        long start = 0;
+        try {
+            start = journalOut.getChannel().position();
+            for (Pending change : changes) {
+                journal.write(encode(change.fields));
+            }
+            journal.flush();
+            journalOut.getFD().sync();
+            written = true;
+        } catch (IOException ex) {
+            System.err.println("[DB] journal write failed: " + ex.getMessage());
+            rollBack(start);
+            written = false;
+        }
+        synchronized (this) {
+            for (Pending change : changes) {
+                if (change.fields[0].equals(USER)) registering.remove(change.fields[1]);
+                if (written) apply(change.fields);
+            }
+        }
+        if (written) journalRecords += changes.size();
+        for (Pending change : changes) {
+            change.done.complete(written);
+        }
+    }
+
+    /**
+     * Cuts a half-written batch off the journal, so later records are not appended after a torn one
+     */
+    private void rollBack(long length) {
+        try {
+            journal.close();
+        } catch (IOException ignored) {
+            // the buffered part of the batch is dropped either way
+        }
+        try {
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            }
+            journal = openJournal(true);
+        } catch (IOException ex) {
+            System.err.println("[DB] cannot reopen journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Copies the state, moves the journal aside for a new one, and leaves writing the copy to another thread
+     */
+    private void startSnapshot(CompletableFuture<Boolean> done) {
+        // a previous journal still on disk means an earlier snapshot failed; its records are in no snapshot yet
+        if (snapshotting || previousJournalFile.exists()) {
+            done.complete(false);
+            return;
+        }
+        List<String> copy;
+        synchronized (this) {
+            copy = state();
+        }
+        long next = generation + 1;
+        try {
+            journal.close();
+            Files.move(journalFile.toPath(), previousJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            generation = next;
+            restartJournal();
+        } catch (IOException ex) {
+            System.err.println("[DB] snapshot failed: " + ex.getMessage());
+            try {
+                journal = openJournal(true);
+            } catch (IOException reopen) {
+                System.err.println("[DB] cannot reopen journal: " + reopen.getMessage());
+            }
+            done.complete(false);
+            return;
+        }
+        snapshotting = true;
+        Thread writer = new Thread(() -> {
+            boolean written = false;
+            try {
+                writeSnapshot(copy, next);
+                Files.delete(previousJournalFile.toPath());
+                written = true;
+            } catch (IOException ex) {
+                System.err.println("[DB] snapshot failed: " + ex.getMessage());
+            } finally {
+                snapshotting = false;
+                done.complete(written);
+            }
+        }, "EmbeddedDatabase-snapshot");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void apply(String[] f) {
+        switch (f[0]) {
+            case USER:
+                passwords.putIfAbsent(f[1], f[2]);
+                break;
+            case LOGIN:
+                sessions.computeIfAbsent(f[1], k -> new ArrayList<>()).add(new Session(f[2], null));
+                break;
+            case LOGOUT:
+                List<Session> sess = sessions.get(f[1]);
+                if (sess == null) break;
+                for (int i = sess.size() - 1; i >= 0; i--) {
+                    if (sess.get(i).logout == null) {
+                        sess.get(i).logout = f[2];
+                        break;
+                    }
+                }
+                break;
+            case FILE:
+                files.computeIfAbsent(f[1], k -> new ArrayList<>()).add(new FileLog(f[2], f[3], f[4]));
+                break;
+            default:
+                System.err.println("[DB] skipping unknown record " + f[0]);
+        }
+    }
+
+    synchronized int sessionCount(String username) {
+        List<Session> sess = sessions.get(username);
+        return sess == null ? 0 : sess.size();
+    }
+
+    /**
+     * @return the state as snapshot records; the caller holds the lock
+     */
+    private List<String> state() {
+        List<String> records = new ArrayList<>();
+        for (Map.Entry<String, String> e : passwords.entrySet()) {
+            records.add(encode(USER, e.getKey(), e.getValue()));
+        }
+        for (Map.Entry<String, List<Session>> e : sessions.entrySet()) {
+            for (Session s : e.getValue()) {
+                records.add(encode(LOGIN, e.getKey(), s.login));
+                if (s.logout != null) records.add(encode(LOGOUT, e.getKey(), s.logout));
+            }
+        }
+        for (Map.Entry<String, List<FileLog>> e : files.entrySet()) {
+            for (FileLog f : e.getValue()) {
+                records.add(encode(FILE, e.getKey(), f.filename, f.channel, f.time));
+            }
+        }
+        return records;
+    }
+
+    private void writeSnapshot(List<String> records, long generation) throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(tmpOut, StandardCharsets.UTF_8))) {
+            out.write(encode(GENERATION, Long.toString(generation)));
+            for (String record : records) {
+                out.write(record);
+            }
+            out.flush();
+            tmpOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void restartJournal() throws IOException {
+        journal.close();
+        journal = openJournal(false);
+        journalRecords = 0;
+    }
+
+    private Writer openJournal(boolean append) throws IOException {
+        journalOut = new FileOutputStream(journalFile, append);
+        Writer out = new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8));
+        if (journalFile.length() == 0) {
+            out.write(encode(GENERATION, Long.toString(generation)));
+            out.flush();
+            journalOut.getFD().sync();
+        }
+        return out;
+    }
+
+    /** @return the generation recorded at the head of the file; 0 for a missing file or one written before generations */
+    private static long readGeneration(File file) throws IOException {
+        if (!file.exists()) return 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(GENERATION + "\t")) return 0;
+            try {
+                return Long.parseLong(line.substring(GENERATION.length() + 1));
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @param tornTail whether the file is a journal, whose last record a crash may have cut short; such a
+     *                 record is dropped and cut off the file
+     * @return the number of records read
+     */
+    private int load(File file, boolean tornTail) throws IOException {
+        if (!file.exists()) return 0;
+        byte[] data = Files.readAllBytes(file.toPath());
+        int count = 0;
+        int start = 0;
+        while (start < data.length) {
+            int end = start;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            String[] fields = end == data.length ? null : parse(new String(data, start, end - start, StandardCharsets.UTF_8));
+            if (fields == null) {
+                if (!tornTail || end < data.length - 1) {
+                    throw new IOException("Bad record at byte " + start + " of " + file);
+                }
+                System.err.println("[DB] dropping torn record at the end of " + file);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                    channel.force(true);
+                }
+                break;
+            }
+            if (fields.length > 0 && !fields[0].equals(GENERATION)) {
+                apply(fields);
+                count++;
+            }
+            start = end + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return the record's fields, none for an empty line, null if the line is not a whole record
+     */
+    private static String[] parse(String line) {
+        if (line.isEmpty()) return new String[0];
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+            if (fields[i] == null) return null;
+        }
+        int arity = arity(fields[0]);
+        return arity < 0 || fields.length == arity ? fields : null;
+    }
+
+    /** @return how many fields a record of the kind has, -1 for a kind this version does not know */
+    private static int arity(String kind) {
+        switch (kind) {
+            case GENERATION:
+                return 2;
+            case USER:
+            case LOGIN:
+            case LOGOUT:
+                return 3;
+            case FILE:
+                return 5;
+            default:
+                return -1;
+        }
+    }
+
+    private static String encode(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) sb.append('\t');
+            sb.append(escape(fields[i] == null ? "" : fields[i]));
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /** @return null if the field ends in the middle of an escape or uses one {@link #escape} never writes */
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i == s.length()) return null;
+            char n = s.charAt(i);
+            if (n == 't') sb.append('\t');
+            else if (n == 'n') sb.append('\n');
+            else if (n == 'r') sb.append('\r');
+            else if (n == '\\') sb.append('\\');
+            else return null;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package bgu.spl.net.impl.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking client of the SQL sidecar. One selector thread drives a small pool of persistent links;
+ * each link carries one statement at a time (the sidecar answers strictly request/response) and the
+ * others wait in a queue. Callers get a future and never block on the socket.
+ */
+class SqlClient {
+
+    private final InetSocketAddress address;
+    private final int maxLinks;
+    private final Queue<Request> waiting = new ConcurrentLinkedQueue<>();
+    private final Queue<Link> idle = new ArrayDeque<>();
+    private final Selector selector;
+    private int links = 0;
+
+    private static class Request {
+        final ByteBuffer sql;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Request(String sql) {
+            this.sql = ByteBuffer.wrap((sql + '\0').getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class Link {
+        final SocketChannel chan;
+        final ByteBuffer readBuf = ByteBuffer.allocate(1 << 12);
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        Request current;
+
+        Link(SocketChannel chan) {
+            this.chan = chan;
+        }
+    }
+
+    SqlClient(String host, int port, int maxLinks) {
+        this.address = new InetSocketAddress(host, port);
+        this.maxLinks = maxLinks;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot open selector", ex);
+        }
+        Thread t = new Thread(this::loop, "SqlClient");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return the raw sidecar response, "ERROR|..." when the sidecar cannot be reached
+     */
+    CompletableFuture<String> execute(String sql) {
+        Request request = new Request(sql);
+        waiting.add(request);
+        selector.wakeup();
+        return request.result;
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                selector.select();
+                dispatch();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Link link = (Link) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            link.chan.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            write(link, key);
+                        } else if (key.isReadable()) {
+                            read(link, key);
+                        }
+                    } catch (IOException ex) {
+                        fail(link, key, ex);
+                    }
+                }
+                // links freed above can take queued statements right away
+                dispatch();
+            } catch (IOException ex) {
+                System.err.println("[DB] SQL client error: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (!waiting.isEmpty()) {
+            Link link = idle.poll();
+            if (link == null) {
+                if (links >= maxLinks) return;
+                Request request = waiting.poll();
+                if (request == null) return;
+                open(request);
+                continue;
+            }
+            Request request = waiting.poll();
+            if (request == null) {
+                idle.add(link);
+                return;
+            }
+            link.current = request;
+            link.chan.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void open(Request request) {
+        SocketChannel chan = null;
+        try {
+            chan = SocketChannel.open();
+            chan.configureBlocking(false);
+            Link link = new Link(chan);
+            link.current = request;
+            int ops = chan.connect(address) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+            chan.register(selector, ops, link);
+            links++;
+        } catch (IOException ex) {
+            if (chan != null) {
+                try {
+                    chan.close();
+                } catch (IOException ignored) {
+                }
+            }
+            complete(request, "ERROR|" + ex.getMessage());
+        }
+    }
+
+    private void write(Link link, SelectionKey key) throws IOException {
+        link.chan.write(link.current.sql);
+        if (!link.current.sql.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(Link link, SelectionKey key) throws IOException {
+        link.readBuf.clear();
+        if (link.chan.read(link.readBuf) < 0) {
+            throw new IOException("SQL server closed the connection");
+        }
+        link.readBuf.flip();
+        if (link.current == null) return; // idle links only listen for the sidecar hanging up
+        while (link.readBuf.hasRemaining()) {
+            byte b = link.readBuf.get();
+            if (b == '\0') {
+                String resp = new String(link.response.toByteArray(), StandardCharsets.UTF_8);
+                link.response.reset();
+                Request done = link.current;
+                link.current = null;
+                key.interestOps(SelectionKey.OP_READ);
+                idle.add(link);
+                complete(done, resp);
+                return;
+            }
+            link.response.write(b);
+        }
+    }
+
+    private void fail(Link link, SelectionKey key, IOException ex) {
+        System.err.println("[DB] SQL server error: " + ex.getMessage());
+        key.cancel();
+        try {
+            link.chan.close();
+        } catch (IOException ignored) {
+        }
+        links--;
+        idle.remove(link);
+        if (link.current != null) {
+            complete(link.current, "ERROR|" + ex.getMessage());
+        }
+    }
+
+    private static void complete(Request request, String resp) {
+        try {
+            request.result.complete(resp);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistence through the Python SQL sidecar (data/sql_server.py).
+ */
+public class SqlSidecarDatabase implements Database {
+
+    private final String sqlHost = "127.0.0.1";
+    private final int sqlPort = 7778;
+    private final SqlClient sql = new SqlClient(sqlHost, sqlPort, 4);
+
+    // last pending write per user: statements of one user are chained so a logout never overtakes its login
+    private final ConcurrentHashMap<String, CompletableFuture<String>> lastWrite = new ConcurrentHashMap<>();
+
+    SqlSidecarDatabase() {}
+
+    private CompletableFuture<String> executeSQL(String sql) {
+        return this.sql.execute(sql);
+    }
+
+    private CompletableFuture<String> executeOrdered(String username, String sql) {
+        CompletableFuture<String> result = lastWrite.compute(username, (k, prev) ->
+                prev == null ? executeSQL(sql) : prev.thenCompose(r -> executeSQL(sql)));
+        result.whenComplete((r, ex) -> lastWrite.remove(username, result));
+        return result;
+    }
+
+    private String esc(String s) {
+        if (s == null) return "";
+        return s.replace("'", "''");
+    }
+
+    private static final DateTimeFormatter TS_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private String now() {
+        return LocalDateTime.now().format(TS_FMT);
+    }
+
+    private boolean isSuccess(String resp) {
+        return resp != null && resp.startsWith("SUCCESS");
+    }
+
+    private List<String[]> parseRows(String resp) {
+        if (resp == null) return Collections.emptyList();
+        if (!resp.startsWith("SUCCESS")) return Collections.emptyList();
+        String[] parts = resp.split("\\|", -1);
+        if (parts.length <= 1) return Collections.emptyList();
+
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            String row = parts[i];
+            if (row == null || row.isEmpty()) continue;
+            rows.add(row.split(",", -1));
+        }
+        return rows;
+    }
+
+    @Override
+    public CompletableFuture<String> getPassword(String username) {
+        String sql = "SELECT password FROM users WHERE username='" + esc(username) + "'";
+        return executeSQL(sql).thenApply(resp -> {
+            List<String[]> rows = parseRows(resp);
+            if (rows.isEmpty()) return null;
+            return rows.get(0).length > 0 ? rows.get(0)[0] : null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> registerUser(String username, String password) {
+        String sql = "INSERT INTO users(username,password) VALUES('" + esc(username) + "','" + esc(password) + "')";
+        return executeOrdered(username, sql).thenApply(this::isSuccess);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> logLogin(String username) {
+        String sql = "INSERT INTO sessions(username,login_time,logout_time) VALUES('" + esc(username) + "','" + esc(now()) + "',NULL)";
+        return executeOrdered(username, sql).thenApply(this::isSuccess);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> logLogout(String username) {
+        String ts = esc(now());
+        String u = esc(username);
+        String sql = "UPDATE sessions SET logout_time='" + ts + "' WHERE id=(SELECT id FROM sessions WHERE username='" + u + "' AND logout_time IS NULL ORDER BY id DESC LIMIT 1)";
+        return executeOrdered(username, sql).thenApply(this::isSuccess);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> trackFileUpload(String username, String filename, String gameChannel) {
+        String sql = "INSERT INTO file_logs(username,filename,game_channel,upload_time) VALUES('" + esc(username) + "','" + esc(filename) + "','" + esc(gameChannel) + "','" + esc(now()) + "')";
+        return executeOrdered(username, sql).thenApply(this::isSuccess);
+    }
+
+    @Override
+    public CompletableFuture<Void> flush() {
+        // the last write of each user completes after all earlier ones of that user
+        return CompletableFuture.allOf(lastWrite.values().toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public void printReport() {
+        System.out.println("\n========== SERVER SQL REPORT (" + LocalDateTime.now() + ") ==========");
+
+        System.out.println("\n1) Registered users:");
+        List<String[]> users = parseRows(executeSQL("SELECT username FROM users ORDER BY username").join());
+        if (users.isEmpty()) {
+            System.out.println("   (none)");
+            System.out.println("======================================================\n");
+            return;
+        }
+        for (String[] r : users) {
+            System.out.println("   - " + r[0]);
+        }
+
+        System.out.println("\n2) Login history:");
+        for (String[] u : users) {
+            String user = u[0];
+            System.out.println("\n   User: " + user);
+            List<String[]> sess = parseRows(executeSQL(
+                    "SELECT login_time, COALESCE(logout_time,'') FROM sessions WHERE username='" + esc(user) + "' ORDER BY id").join());
+            if (sess.isEmpty()) {
+                System.out.println("      (no sessions)");
+            } else {
+                for (String[] s : sess) {
+                    String login = s.length > 0 ? s[0] : "";
+                    String logout = s.length > 1 ? s[1] : "";
+                    System.out.println("      login=" + login + " logout=" + (logout.isEmpty() ? "(still logged in)" : logout));
+                }
+            }
+        }
+
+        System.out.println("\n3) Filenames uploaded via report:");
+        for (String[] u : users) {
+            String user = u[0];
+            System.out.println("\n   User: " + user);
+            List<String[]> files = parseRows(executeSQL(
+                    "SELECT filename, COALESCE(game_channel,''), upload_time FROM file_logs WHERE username='" + esc(user) + "' ORDER BY id").join());
+            if (files.isEmpty()) {
+                System.out.println("      (no files)");
+            } else {
+                for (String[] f : files) {
+                    String fname = f.length > 0 ? f[0] : "";
+                    String chan = f.length > 1 ? f[1] : "";
+                    String time = f.length > 2 ? f[2] : "";
+                    System.out.println("      file='" + fname + "' channel='" + chan + "' time=" + time);
+                }
+            }
+        }
+
+        System.out.println("======================================================\n");
+    }
+}
@@ -1,17 +1,19 @@
 package bgu.spl.net.impl.data;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
 public class User {
+    private static final String[] NO_SUBSCRIPTIONS = new String[0];
+
     public final String name;
     public final String password;
 
     private volatile int connectionId;
     private volatile boolean isLoggedIn = false;
 
-    private final Map<String, String> topicToSubId = new ConcurrentHashMap<>();
-    private final Map<String, String> subIdToTopic = new ConcurrentHashMap<>();
+    // topic, subscription id, topic, subscription id, ...; a user subscribes to a few topics at most, so a
+    // flat array replaced on every change costs far less than two maps and needs no lock to read
+    private volatile String[] subscriptions = NO_SUBSCRIPTIONS;
 
     public User(int connectionId, String name, String password) {
         this.connectionId = connectionId;
@@ -26,28 +28,50 @@ public class User {
     public int getConnectionId() { return connectionId; }
     public void setConnectionId(int connectionId) { this.connectionId = connectionId; }
 
-    public void addSubscription(String topic, String subId) {
-        topicToSubId.put(topic, subId);
-        subIdToTopic.put(subId, topic);
+    public synchronized void addSubscription(String topic, String subId) {
+        String[] subs = without(subscriptions, subId);
+        subs = Arrays.copyOf(subs, subs.length + 2);
+        subs[subs.length - 2] = topic;
+        subs[subs.length - 1] = subId;
+        subscriptions = subs;
     }
 
+    /**
+     * @return the id of the latest subscription to the topic
+     */
     public String getSubscriptionId(String topic) {
-        return topicToSubId.get(topic);
+        String[] subs = subscriptions;
+        for (int i = subs.length - 2; i >= 0; i -= 2) {
+            if (subs[i].equals(topic)) return subs[i + 1];
+        }
+        return null;
     }
 
     public String getTopic(String subId) {
-        return subIdToTopic.get(subId);
+        String[] subs = subscriptions;
+        for (int i = 0; i < subs.length; i += 2) {
+            if (subs[i + 1].equals(subId)) return subs[i];
+        }
+        return null;
     }
 
-    public void removeSubscription(String subId) {
-        String topic = subIdToTopic.remove(subId);
-        if (topic != null) {
-            topicToSubId.remove(topic);
-        }
+    public synchronized void removeSubscription(String subId) {
+        subscriptions = without(subscriptions, subId);
     }
 
-    public void clearSubscriptions() {
-        topicToSubId.clear();
-        subIdToTopic.clear();
+    public synchronized void clearSubscriptions() {
+        subscriptions = NO_SUBSCRIPTIONS;
+    }
+
+    private static String[] without(String[] subs, String subId) {
+        for (int i = 0; i < subs.length; i += 2) {
+            if (!subs[i + 1].equals(subId)) continue;
+            if (subs.length == 2) return NO_SUBSCRIPTIONS;
+            String[] rest = new String[subs.length - 2];
+            System.arraycopy(subs, 0, rest, 0, i);
+            System.arraycopy(subs, i + 2, rest, i, subs.length - i - 2);
+            return rest;
+        }
+        return subs;
     }
 }
\ No newline at end of file
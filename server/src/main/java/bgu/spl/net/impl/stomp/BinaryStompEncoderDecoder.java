@@ -0,0 +1,352 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Length-prefixed binary STOMP framing. Frames are read by count and never scanned for a terminator, so
+ * bodies may contain NULs, and well-known commands and header names travel as one-byte ids, so frames
+ * are smaller on the wire. A connection switches to it by opening with {@link #PREAMBLE} (see {@link NegotiatingEncoderDecoder}).
+ * Every frame is:
+ * <pre>
+ *   varint  length of what follows
+ *   byte    command id, an index into COMMANDS
+ *   varint  number of headers
+ *   headers varint name id (index into HEADERS plus one, or 0 followed by varint length and UTF-8 name),
+ *           then varint length and UTF-8 value
+ *   body    the remaining bytes, UTF-8
+ * </pre>
+ * Varints are unsigned LEB128, and a frame of length 0 is a heart-beat. A decoded frame is never turned
+ * into text: its command, headers and body go straight into a {@link FrameParser}, the form the protocol
+ * works on, with known names and values as the parser's shared constants, and {@link FrameParser#PARSED}
+ * is returned in its place. Outgoing text frames are translated in a single pass. Oversized and
+ * undecodable frames come out as {@link StompEncoderDecoder#FRAME_TOO_LARGE} and
+ * {@link StompEncoderDecoder#MALFORMED_FRAME}; a length prefix is checked against the size limit before
+ * anything is allocated for the frame.
+ */
+public class BinaryStompEncoderDecoder implements MessageEncoderDecoder<String> {
+
+    public static final byte[] PREAMBLE = {(byte) 0xB5, 'S', 'B', 1};
+
+    private static final String[] COMMANDS = {
+            "CONNECT", "STOMP", "CONNECTED", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "ACK", "NACK",
+            "BEGIN", "COMMIT", "ABORT", "DISCONNECT", "MESSAGE", "RECEIPT", "ERROR"
+    };
+
+    private static final String[] HEADERS = {
+            "accept-version", "host", "login", "passcode", "heart-beat", "version", "session", "server",
+            "destination", "id", "ack", "transaction", "receipt", "receipt-id", "subscription", "message-id",
+            "message", "content-type", "content-length", "selector", "accept-encoding", "content-encoding",
+            "content-transfer-encoding", "file", "resume-token", "resumed", "snapshot",
+            "prefetch-count", "consumer-group", "consumer-group-balance"
+    };
+
+    // room left in front of an encoded frame for its length prefix
+    private static final int MAX_VARINT = 5;
+
+    private final int maxFrameSize;
+    // where decoded frames go
+    private final FrameParser frame;
+
+    private int length = 0;
+    private int lengthShift = 0;
+    private byte[] payload = null;
+    private int filled = 0;
+    // bytes left of an oversized frame being skipped
+    private int skipping = 0;
+    // read position in the payload being parsed
+    private int cursor = 0;
+
+    public BinaryStompEncoderDecoder() {
+        this(StompEncoderDecoder.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public BinaryStompEncoderDecoder(int maxFrameSize) {
+        this(maxFrameSize, new FrameParser());
+    }
+
+    /**
+     * @param frame filled by every frame decoded
+     */
+    public BinaryStompEncoderDecoder(int maxFrameSize, FrameParser frame) {
+        this.maxFrameSize = maxFrameSize;
+        this.frame = frame;
+    }
+
+    /**
+     * @return the last frame decoded, valid until the next one
+     */
+    public FrameParser frame() {
+        return frame;
+    }
+
+    @Override
+    public String decodeNextByte(byte nextByte) {
+        if (skipping > 0) {
+            return --skipping == 0 ? StompEncoderDecoder.FRAME_TOO_LARGE : null;
+        }
+        if (payload == null) {
+            length |= (nextByte & 0x7F) << lengthShift;
+            lengthShift += 7;
+            if ((nextByte & 0x80) != 0) {
+                if (lengthShift > 28) {
+                    length = 0;
+                    lengthShift = 0;
+                    return StompEncoderDecoder.MALFORMED_FRAME;
+                }
+                return null;
+            }
+            int frameLength = length;
+            length = 0;
+            lengthShift = 0;
+            if (frameLength == 0) return null;
+            if (frameLength < 0 || frameLength > maxFrameSize) {
+                // the length prefix lets an oversized frame be skipped without ever buffering it
+                skipping = frameLength < 0 ? 0 : frameLength;
+                return skipping == 0 ? StompEncoderDecoder.MALFORMED_FRAME : null;
+            }
+            payload = new byte[frameLength];
+            filled = 0;
+            return null;
+        } else {
+            payload[filled++] = nextByte;
+        }
+
+        if (filled < payload.length) return null;
+
+        byte[] bytes = payload;
+        payload = null;
+        try {
+            parse(bytes);
+            return FrameParser.PARSED;
+        } catch (IllegalStateException ex) {
+            return StompEncoderDecoder.MALFORMED_FRAME;
+        }
+    }
+
+    /**
+     * Translates a text frame in a single pass over it, straight into the output bytes
+     */
+    @Override
+    public byte[] encode(String message) {
+        int n = message.length();
+        Output out = new Output(n + 16);
+        out.pos = MAX_VARINT;
+
+        int end = lineEnd(message, 0);
+        int from = 0;
+        int to = end;
+        while (from < to && message.charAt(from) <= ' ') from++;
+        while (to > from && message.charAt(to - 1) <= ' ') to--;
+        int command = idOf(COMMANDS, message, from, to);
+        if (command < 0) throw new IllegalArgumentException("Unknown command");
+        out.write(command);
+
+        // the header count goes in front of the headers, so they are written first and moved up after it
+        int countAt = out.pos;
+        out.pos += MAX_VARINT;
+        int headersAt = out.pos;
+        int count = 0;
+        int pos = end + 1;
+        while (pos < n) {
+            end = lineEnd(message, pos);
+            if (end == pos) {
+                pos++;
+                break;
+            }
+            int colon = message.indexOf(':', pos);
+            if (colon > pos && colon < end) {
+                int id = idOf(HEADERS, message, pos, colon);
+                if (id >= 0) {
+                    out.varint(id + 1);
+                } else {
+                    out.varint(0);
+                    out.string(message, pos, colon);
+                }
+                out.string(message, colon + 1, end);
+                count++;
+            }
+            pos = end + 1;
+        }
+        int headersEnd = out.pos;
+        out.pos = countAt;
+        out.varint(count);
+        System.arraycopy(out.buf, headersAt, out.buf, out.pos, headersEnd - headersAt);
+        out.pos += headersEnd - headersAt;
+
+        if (pos < n) {
+            out.text(message, pos, n);
+        }
+
+        // the length prefix goes right in front of the frame, in the room left for it
+        int frameEnd = out.pos;
+        int length = frameEnd - MAX_VARINT;
+        int start = MAX_VARINT - varintSize(length);
+        out.pos = start;
+        out.varint(length);
+        return Arrays.copyOfRange(out.buf, start, frameEnd);
+    }
+
+    @Override
+    public byte[] heartbeat() {
+        return new byte[]{0};
+    }
+
+    /**
+     * Fills {@link #frame} from a whole payload in one pass over it
+     */
+    private void parse(byte[] bytes) {
+        cursor = 0;
+        int command = bytes[cursor++] & 0xFF;
+        if (command >= COMMANDS.length) throw new IllegalStateException("Unknown command id " + command);
+        frame.start(COMMANDS[command]);
+
+        int count = readVarint(bytes);
+        for (int i = 0; i < count; i++) {
+            int id = readVarint(bytes);
+            String name;
+            if (id == 0) {
+                int from = readString(bytes);
+                name = FrameParser.name(bytes, from, cursor);
+            } else if (id <= HEADERS.length) {
+                name = HEADERS[id - 1];
+            } else {
+                throw new IllegalStateException("Unknown header id " + id);
+            }
+            int from = readString(bytes);
+            frame.header(name, FrameParser.value(bytes, from, cursor));
+        }
+        if (cursor < bytes.length) {
+            frame.body(new String(bytes, cursor, bytes.length - cursor, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int lineEnd(String s, int from) {
+        int eol = s.indexOf('\n', from);
+        return eol < 0 ? s.length() : eol;
+    }
+
+    /**
+     * @return the index of the name spelled by s[from, to), -1 if it is not in {@code names}
+     */
+    private static int idOf(String[] names, String s, int from, int to) {
+        int n = to - from;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == n && s.regionMatches(from, names[i], 0, n)) return i;
+        }
+        return -1;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * A growing byte array written from the front
+     */
+    private static final class Output {
+        byte[] buf;
+        int pos = 0;
+
+        Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void varint(int value) {
+            ensure(MAX_VARINT);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        /**
+         * s[from, to) as UTF-8, preceded by its length
+         */
+        void string(String s, int from, int to) {
+            if (isAscii(s, from, to)) {
+                varint(to - from);
+                ascii(s, from, to);
+            } else {
+                byte[] bytes = s.substring(from, to).getBytes(StandardCharsets.UTF_8);
+                varint(bytes.length);
+                bytes(bytes);
+            }
+        }
+
+        /**
+         * s[from, to) as UTF-8, as is
+         */
+        void text(String s, int from, int to) {
+            if (isAscii(s, from, to)) {
+                ascii(s, from, to);
+            } else {
+                bytes(s.substring(from, to).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private void ascii(String s, int from, int to) {
+            ensure(to - from);
+            for (int i = from; i < to; i++) {
+                buf[pos++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private static boolean isAscii(String s, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (s.charAt(i) >= 0x80) return false;
+            }
+            return true;
+        }
+    }
+
+    private int readVarint(byte[] bytes) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (cursor >= bytes.length || shift > 28) throw new IllegalStateException("Malformed varint");
+            byte b = bytes[cursor++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    /**
+     * Skips over a length-prefixed string
+     *
+     * @return where its bytes start; they end at the cursor
+     */
+    private int readString(byte[] bytes) {
+        int len = readVarint(bytes);
+        if (len < 0 || cursor + len > bytes.length) throw new IllegalStateException("Malformed string");
+        int from = cursor;
+        cursor += len;
+        return from;
+    }
+}
@@ -0,0 +1,524 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ServerConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins this server to a mesh of peers so that clients on different nodes share destinations.
+ * <p>
+ * Every node dials every peer it is configured with and accepts the peers' links on its cluster port,
+ * so each pair of nodes has one link per direction: a node writes on the link it dialed and reads on
+ * the one it accepted. Links carry text STOMP frames:
+ * <pre>
+ *   CHALLENGE   nonce:random         the only frame an accepting node writes, as soon as it accepts
+ *   NODE        node:id              the dialer's first frame, with an incarnation header that changes
+ *                                    every time the sender process starts, and a proof header: the
+ *                                    HMAC-SHA256 of nonce, id and incarnation under the cluster secret
+ *   INTEREST    destination:pattern  the sender has local subscribers on pattern
+ *   UNINTEREST  destination:pattern  ... and no longer has
+ *   PUBLISH     destination:topic    a SEND made on the sender, with its headers and body
+ * </pre>
+ * plus the frames of the {@link SessionRegistry} that keeps logins unique across the cluster.
+ * A link is read only after its NODE names a configured peer and carries a valid proof; anything else, or
+ * no NODE within the connect timeout, closes it. The secret authenticates links, it does not encrypt them.
+ * A SEND is encoded once and queued to each peer whose interest matches it; a PUBLISH is delivered to the
+ * receiving node's own subscribers only and never forwarded again. Consumer groups are per node: a member
+ * gets its share of the publishes made on its own node only, so no message reaches two members of a group
+ * on different nodes, and a group's subscriptions are not announced as interest. Each link's writer drains everything
+ * queued and flushes once, so remote delivery is batched under load. While a link is down, publishes for
+ * that peer are dropped; on reconnect it gets this node's full interest again.
+ */
+public class ClusterBridge {
+
+    private static final long RECONNECT_MS = 1000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    // wakes a link's writer without writing anything
+    private static final byte[] WAKE = new byte[0];
+    private static final String HMAC = "HmacSHA256";
+    private static final int MAX_CHALLENGE_SIZE = 1024;
+
+    private final String nodeId;
+    private final int port;
+    private final String bindHost;
+    private final byte[] secret;
+    private final ServerConfig config;
+    private final ConnectionsImpl<String> connections;
+    private final StompEncoderDecoder encoder;
+    private final Map<String, PeerLink> peers = new LinkedHashMap<>();
+
+    // local subscriptions per destination pattern; guarded by this, together with what the links were told
+    private final Map<String, Integer> localInterest = new HashMap<>();
+    // the peers' interest; the entries' id is the peer's node id
+    private final TopicTrie remoteInterest = new TopicTrie();
+    private final SessionRegistry sessions;
+
+    // tells a restarted process from a reconnect of the same one
+    private final String incarnation = ParkedSessions.newToken();
+    private final ConcurrentHashMap<String, String> incarnations = new ConcurrentHashMap<>();
+    // the inbound link each peer uses now
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    private volatile boolean running = false;
+    private ServerSocket listener;
+
+    /**
+     * Outbound link to one peer
+     */
+    private final class PeerLink implements Runnable {
+        final String id;
+        final InetSocketAddress address;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        // set under the bridge's lock once the interest snapshot is queued
+        volatile boolean connected = false;
+        private boolean restartRequested = false;
+
+        PeerLink(String id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        /**
+         * Dials the peer right away if the link is down; with {@code dropCurrent} an open link is closed
+         * first, because it leads to a process that is gone
+         */
+        void redial(boolean dropCurrent) {
+            synchronized (this) {
+                if (dropCurrent) connected = false;
+                restartRequested = true;
+                notifyAll();
+            }
+            if (dropCurrent) queue.add(WAKE);
+        }
+
+        /**
+         * Returns once the link is up or the connect timeout passed
+         */
+        void awaitConnected() {
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            while (!connected && running && System.currentTimeMillis() < deadline) {
+                sleep(10);
+            }
+        }
+
+        private synchronized void pause() throws InterruptedException {
+            if (!restartRequested) wait(RECONNECT_MS);
+            restartRequested = false;
+        }
+
+        /**
+         * Queues a publish; dropped while the link is down or too far behind
+         */
+        void offer(byte[] frame) {
+            if (!connected) return;
+            if (config.maxOutboundFrames > 0 && queue.size() >= config.maxOutboundFrames) return;
+            queue.add(frame);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Socket sock = new Socket()) {
+                    config.configure(sock);
+                    sock.connect(address, CONNECT_TIMEOUT_MS);
+                    String nonce = readChallenge(sock);
+                    OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+                    synchronized (ClusterBridge.this) {
+                        queue.clear();
+                        queue.add(encode(nodeFrame(nonce)));
+                        for (String destination : localInterest.keySet()) {
+                            queue.add(encode(interestFrame("INTEREST", destination)));
+                        }
+                        connected = true;
+                    }
+                    synchronized (this) {
+                        restartRequested = false;
+                    }
+                    while (running && connected) {
+                        byte[] frame = queue.take();
+                        do {
+                            if (frame != WAKE) out.write(frame);
+                        } while ((frame = queue.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException ex) {
+                    if (connected) {
+                        System.err.println("Cluster link to " + id + " lost: " + ex.getMessage());
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    pause();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public ClusterBridge(ServerConfig config, ConnectionsImpl<String> connections) {
+        this.nodeId = config.clusterNode;
+        this.port = config.clusterPort;
+        this.config = config;
+        this.connections = connections;
+        this.encoder = new StompEncoderDecoder(config.maxFrameSize);
+        if (config.clusterSecret.isEmpty()) {
+            throw new IllegalArgumentException("stomp.cluster.secret must be set to join a cluster");
+        }
+        this.secret = config.clusterSecret.getBytes(StandardCharsets.UTF_8);
+
+        // id@host:port, comma separated; this node's own entry may be listed too and is skipped
+        String ownHost = null;
+        for (String entry : config.clusterPeers.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Cluster peer must be id@host:port: " + entry);
+            }
+            String id = entry.substring(0, at);
+            if (id.equals(nodeId)) {
+                ownHost = entry.substring(at + 1, colon);
+                continue;
+            }
+            InetSocketAddress address = new InetSocketAddress(entry.substring(at + 1, colon), Integer.parseInt(entry.substring(colon + 1)));
+            peers.put(id, new PeerLink(id, address));
+        }
+        this.bindHost = !config.clusterBindAddress.isEmpty() ? config.clusterBindAddress
+                : ownHost != null ? ownHost : "127.0.0.1";
+        this.sessions = new SessionRegistry(nodeId, peers.keySet(), config.clusterLeaseMs, this, connections.getTimers());
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    public SessionRegistry sessions() {
+        return sessions;
+    }
+
+    /**
+     * @return true while the outbound link to {@code peer} is up
+     */
+    public boolean isConnected(String peer) {
+        PeerLink link = peers.get(peer);
+        return link != null && link.connected;
+    }
+
+    /**
+     * Queues a frame for one peer; unlike publishes it is not subject to the outbound limit
+     *
+     * @return false if the link to the peer is down
+     */
+    boolean sendTo(String peer, String frame) {
+        PeerLink link = peers.get(peer);
+        if (link == null || !link.connected) return false;
+        link.queue.add(encode(frame));
+        return true;
+    }
+
+    public void start() throws IOException {
+        running = true;
+        listener = new ServerSocket();
+        config.configureListener(listener);
+        listener.bind(new InetSocketAddress(bindHost, port));
+        daemon(this::accept, "Cluster-accept").start();
+        for (PeerLink peer : peers.values()) {
+            daemon(peer, "Cluster-to-" + peer.id).start();
+        }
+        sessions.start();
+        System.out.println("Cluster node " + nodeId + " listening on " + bindHost + ":" + port + ", peers " + peers.keySet());
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * A local subscription on {@code destination} was added or removed. Peers hear about a destination
+     * when its first subscription appears and when its last one goes.
+     */
+    public synchronized void interest(String destination, boolean added) {
+        int before = localInterest.getOrDefault(destination, 0);
+        int after = before + (added ? 1 : -1);
+        if (after <= 0) {
+            localInterest.remove(destination);
+        } else {
+            localInterest.put(destination, after);
+        }
+        if (before == 0 && after > 0) {
+            broadcast(encode(interestFrame("INTEREST", destination)));
+        } else if (before > 0 && after <= 0) {
+            broadcast(encode(interestFrame("UNINTEREST", destination)));
+        }
+    }
+
+    private void broadcast(byte[] frame) {
+        for (PeerLink peer : peers.values()) {
+            if (peer.connected) peer.queue.add(frame);
+        }
+    }
+
+    /**
+     * Forwards a SEND made on this node to every peer with subscribers on its destination
+     */
+    public void publish(String topic, Map<String, String> headers, String body) {
+        List<Subscription> interested = remoteInterest.match(topic);
+        if (interested.isEmpty()) return;
+
+        byte[] frame = null;
+        Set<String> sent = null;
+        for (Subscription entry : interested) {
+            PeerLink peer = peers.get(entry.id);
+            if (peer == null) continue;
+            if (sent == null) sent = new HashSet<>();
+            if (!sent.add(peer.id)) continue;
+            if (frame == null) frame = encode(publishFrame(topic, headers, body));
+            peer.offer(frame);
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket sock = listener.accept();
+                config.configure(sock);
+                daemon(() -> read(sock), "Cluster-from-" + sock.getRemoteSocketAddress()).start();
+            } catch (IOException ex) {
+                if (running) System.err.println("Cluster accept failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads one peer's inbound link until it closes, then forgets that link's interest
+     */
+    private void read(Socket sock) {
+        String peer = null;
+        Map<String, Subscription> entries = new HashMap<>();
+        // publishes from one peer reach each local subscriber in the order they were sent
+        AtomicInteger inFlight = new AtomicInteger(0);
+        StompEncoderDecoder decoder = new StompEncoderDecoder(config.maxFrameSize);
+        String nonce = ParkedSessions.newToken();
+        try (Socket s = sock; InputStream in = new BufferedInputStream(s.getInputStream())) {
+            OutputStream challenge = s.getOutputStream();
+            challenge.write(encode("CHALLENGE\nnonce:" + nonce + "\n\n"));
+            challenge.flush();
+            // a link that does not introduce itself in time is dropped
+            s.setSoTimeout(CONNECT_TIMEOUT_MS);
+            int read;
+            while ((read = in.read()) >= 0) {
+                String frame = decoder.decodeNextByte((byte) read);
+                if (frame == null) continue;
+                if (frame == StompEncoderDecoder.FRAME_TOO_LARGE || frame == StompEncoderDecoder.MALFORMED_FRAME) {
+                    continue;
+                }
+
+                Map<String, String> headers = new HashMap<>();
+                int end = frame.indexOf('\n');
+                String command = end < 0 ? frame : frame.substring(0, end);
+                String body = parse(frame, end, headers);
+                String destination = headers.get("destination");
+
+                if (peer == null && command.equals("NODE")) {
+                    String node = headers.get("node");
+                    String incarnation = headers.get("incarnation");
+                    PeerLink link = node == null ? null : peers.get(node);
+                    if (link == null) {
+                        throw new IOException("Cluster link from unknown node " + node);
+                    }
+                    if (incarnation == null || !proves(headers.get("proof"), nonce, node, incarnation)) {
+                        throw new IOException("Cluster link from " + node + " failed authentication");
+                    }
+                    peer = node;
+                    s.setSoTimeout(0);
+                    String previous = incarnations.put(peer, incarnation);
+                    boolean restarted = previous != null && !previous.equals(incarnation);
+                    if (restarted) sessions.peerRestarted(peer);
+                    inbound.put(peer, sock);
+                    // interest that follows is answered with publishes, which need a live outbound link
+                    link.redial(restarted);
+                    link.awaitConnected();
+                } else if (peer == null) {
+                    throw new IOException("Cluster link did not introduce itself");
+                } else if (command.equals("INTEREST") && destination != null) {
+                    if (!entries.containsKey(destination)) {
+                        Subscription entry = new Subscription(-1, peer, destination, null, false);
+                        entries.put(destination, entry);
+                        remoteInterest.add(entry);
+                    }
+                } else if (command.equals("UNINTEREST") && destination != null) {
+                    Subscription entry = entries.remove(destination);
+                    if (entry != null) remoteInterest.remove(entry);
+                } else if (command.equals("PUBLISH") && destination != null) {
+                    deliver(destination, headers, body, inFlight);
+                } else {
+                    sessions.handle(peer, command, headers, body);
+                }
+            }
+        } catch (IOException ex) {
+            if (running) System.err.println("Cluster link from " + (peer != null ? peer : sock.getRemoteSocketAddress()) + " closed: " + ex.getMessage());
+        } finally {
+            for (Subscription entry : entries.values()) {
+                remoteInterest.remove(entry);
+            }
+            // the peer's end closed, so it is probably gone: find out now rather than on the next write,
+            // so that logins it owned move on at once
+            PeerLink link = peer == null ? null : peers.get(peer);
+            if (link != null && inbound.remove(peer, sock)) {
+                link.redial(true);
+            }
+        }
+    }
+
+    private void deliver(String topic, Map<String, String> headers, String body, AtomicInteger inFlight) {
+        GameState.Report report = GameState.parse(body);
+        if (report != null) {
+            connections.recordReport(topic, report);
+        }
+        StompMessagingProtocolImpl.deliver(connections, topic, new MessageBody(headers, body), false, inFlight);
+    }
+
+    private String nodeFrame(String nonce) {
+        return "NODE\nnode:" + nodeId + "\nincarnation:" + incarnation
+                + "\nproof:" + proof(nonce, nodeId, incarnation) + "\n\n";
+    }
+
+    /**
+     * Waits for the CHALLENGE an accepting peer opens the link with
+     *
+     * @return its nonce
+     */
+    private static String readChallenge(Socket sock) throws IOException {
+        sock.setSoTimeout(CONNECT_TIMEOUT_MS);
+        InputStream in = sock.getInputStream();
+        StompEncoderDecoder decoder = new StompEncoderDecoder(MAX_CHALLENGE_SIZE);
+        int read;
+        while ((read = in.read()) >= 0) {
+            String frame = decoder.decodeNextByte((byte) read);
+            if (frame == null) continue;
+            Map<String, String> headers = new HashMap<>();
+            int end = frame.indexOf('\n');
+            String nonce = null;
+            if (end > 0 && frame.substring(0, end).equals("CHALLENGE")) {
+                parse(frame, end, headers);
+                nonce = headers.get("nonce");
+            }
+            if (nonce == null) throw new IOException("Peer did not send a challenge");
+            sock.setSoTimeout(0);
+            return nonce;
+        }
+        throw new IOException("Peer closed the link before its challenge");
+    }
+
+    private String proof(String nonce, String node, String incarnation) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            byte[] digest = mac.doFinal((nonce + '\n' + node + '\n' + incarnation).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(HMAC + " is not available", ex);
+        }
+    }
+
+    private boolean proves(String proof, String nonce, String node, String incarnation) {
+        return proof != null && MessageDigest.isEqual(
+                proof(nonce, node, incarnation).getBytes(StandardCharsets.UTF_8), proof.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String interestFrame(String command, String destination) {
+        return command + "\ndestination:" + destination + "\n\n";
+    }
+
+    private String publishFrame(String topic, Map<String, String> headers, String body) {
+        StringBuilder sb = new StringBuilder(body.length() + 128);
+        sb.append("PUBLISH\n");
+        sb.append("destination:").append(topic).append('\n');
+        sb.append("origin:").append(nodeId).append('\n');
+        for (Map.Entry<String, String> h : headers.entrySet()) {
+            String key = h.getKey();
+            // what only concerned the publisher's own connection stays behind
+            if (key.equals("destination") || key.equals("receipt") || key.equals("transaction")
+                    || key.equals("content-length") || key.equals("origin")) {
+                continue;
+            }
+            sb.append(key).append(':').append(h.getValue()).append('\n');
+        }
+        if (body.indexOf('\0') >= 0) {
+            sb.append("content-length:").append(body.getBytes(StandardCharsets.UTF_8).length).append('\n');
+        }
+        sb.append('\n').append(body);
+        return sb.toString();
+    }
+
+    /**
+     * Fills {@code headers} from the lines after the command
+     * @return the body
+     */
+    private static String parse(String frame, int commandEnd, Map<String, String> headers) {
+        if (commandEnd < 0) return "";
+        int pos = commandEnd + 1;
+        while (pos < frame.length()) {
+            int end = frame.indexOf('\n', pos);
+            if (end < 0) end = frame.length();
+            if (end == pos) return end + 1 <= frame.length() ? frame.substring(end + 1) : "";
+            int colon = frame.indexOf(':', pos);
+            if (colon > pos && colon < end) {
+                headers.putIfAbsent(frame.substring(pos, colon), frame.substring(colon + 1, end));
+            }
+            pos = end + 1;
+        }
+        return "";
+    }
+
+    private byte[] encode(String frame) {
+        return encoder.encode(frame);
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
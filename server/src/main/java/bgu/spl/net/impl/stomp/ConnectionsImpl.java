@@ -1,16 +1,53 @@
-
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.srv.ActorThreadPool;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.IntHashMap;
+import bgu.spl.net.srv.RateLimiter;
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.TimingWheel;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    private final ConcurrentHashMap<Integer, ConnectionHandler<T>> activeConnections = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Integer>> channelSubscribers = new ConcurrentHashMap<>();
+    private final IntHashMap<ConnectionHandler<T>> activeConnections = new IntHashMap<>();
+    // handlers added and not closed yet, including disconnected ones still writing their last frames
+    private final AtomicInteger openConnections = new AtomicInteger(0);
+    private final TopicTrie topics = new TopicTrie();
+    // connection id -> its subscriptions, so a connection leaves without walking every channel. Connections
+    // hold a handful each, so a small array replaced on every change beats a map per connection.
+    private final IntHashMap<Subscription[]> subscriptionsByConnection = new IntHashMap<>();
+    // destination + name -> consumer group
+    private final ConcurrentHashMap<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+    // channel -> game state folded from the reports published on it; dropped once nothing subscribed matches
+    private final ConcurrentHashMap<String, GameState> gameStates = new ConcurrentHashMap<>();
+    // login -> limiter shared by all of that user's connections
+    private final ConcurrentHashMap<String, RateLimiter> userLimits = new ConcurrentHashMap<>();
+
+    private volatile ActorThreadPool workers = null;
+    // thread-per-client mode has no worker pool; admission looks at its writers instead
+    private volatile IntSupplier writerBacklog = null;
+    private volatile TimingWheel timers = null;
+    private volatile ServerConfig config = ServerConfig.defaults();
+    // null unless the server runs in a cluster
+    private volatile ClusterBridge cluster = null;
+    // actor keys of the fan-out partitions; a subscriber always lands in the same one
+    private Object[] partitions = new Object[0];
 
     @Override
     public boolean send(int connectionId, T msg) {
@@ -22,49 +59,517 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false;
     }
 
+    /**
+     * Sends on the connection's control lane, ahead of the messages already queued for it
+     */
+    public boolean sendControl(int connectionId, T msg) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.sendControl(msg);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends several messages to one connection as a single write
+     */
+    public boolean sendAll(int connectionId, List<T> msgs) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.sendAll(msgs);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Delivers a message to one subscription, through its credit window in client-ack mode. A consumer
+     * whose window has backed up past the outbound limit is disconnected.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean deliver(Subscription sub, int messageId, T msg) {
+        ConnectionHandler<T> handler = activeConnections.get(sub.connectionId);
+        if (handler == null) return false;
+        if (sub.window == null) {
+            handler.send(msg);
+        } else if (!sub.window.offer(messageId, (String) msg, frame -> handler.send((T) frame))) {
+            drop(handler);
+        }
+        return true;
+    }
+
+    /**
+     * Settles a message delivered to the connection and sends what was waiting for the freed credit
+     *
+     * @return false if no subscription of the connection has the message outstanding
+     */
+    @SuppressWarnings("unchecked")
+    public boolean settle(int connectionId, int messageId) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler == null) return false;
+        for (Subscription sub : getSubscriptions(connectionId)) {
+            if (sub.window != null && sub.window.settle(messageId, sub.isCumulativeAck(), frame -> handler.send((T) frame))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(ConnectionHandler<T> handler) {
+        try {
+            handler.close();
+        } catch (IOException ignored) {
+        }
+    }
+
     @Override
     public void send(String channel, T msg) {
-        ConcurrentLinkedQueue<Integer> subs = channelSubscribers.get(channel);
-        if (subs != null) {
-            for (Integer id : subs) {
-                send(id, msg);
-            }
+        for (Subscription sub : topics.match(channel)) {
+            send(sub.connectionId, msg);
         }
     }
 
+    /**
+     * Stops delivery to the connection. Its subscriptions stay registered until the protocol releases
+     * them with {@link #unsubscribeAll(int)} when it closes, so it can still decide to park them.
+     */
     @Override
     public void disconnect(int connectionId) {
         activeConnections.remove(connectionId);
+    }
+
+    /**
+     * Applies the server's configuration, joining the cluster if it names a cluster port
+     */
+    @SuppressWarnings("unchecked")
+    public void configure(ServerConfig config) {
+        this.config = config;
+        if (config.clusterPort > 0 && cluster == null) {
+            ClusterBridge bridge = new ClusterBridge(config, (ConnectionsImpl<String>) this);
+            try {
+                bridge.start();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot listen on cluster port " + config.clusterPort, ex);
+            }
+            cluster = bridge;
+        }
+
+        // sessions a drained predecessor handed over
+        File snapshot = new File(config.drainSnapshotFile);
+        if (timers != null && snapshot.isFile()) {
+            StompMessagingProtocolImpl.restoreSessions((ConnectionsImpl<String>) this, snapshot);
+        }
+    }
+
+    /**
+     * Asks every connection to take leave of its client and close, for a restart
+     */
+    public void drain() {
+        // a copy: a blocking handler may disconnect from within drain()
+        for (ConnectionHandler<T> handler : activeConnections.values()) {
+            handler.drain();
+        }
+    }
+
+    /**
+     * @return connections that are not closed yet
+     */
+    public int openConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * A handler closed its connection for good
+     */
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * The server stopped: leaves the cluster
+     */
+    public void shutdown() {
+        ClusterBridge bridge = cluster;
+        if (bridge != null) {
+            bridge.stop();
+        }
+    }
+
+    /**
+     * Claims the login for a new session on this node; in a cluster, for the whole cluster
+     *
+     * @return completes with false if the login is in use elsewhere
+     */
+    public CompletableFuture<Boolean> acquireLogin(String login) {
+        ClusterBridge bridge = cluster;
+        return bridge == null ? CompletableFuture.completedFuture(true) : bridge.sessions().acquire(login);
+    }
+
+    /**
+     * A session that acquired the login ended
+     */
+    public void releaseLogin(String login) {
+        ClusterBridge bridge = cluster;
+        if (bridge != null) {
+            bridge.sessions().release(login);
+        }
+    }
+
+    /**
+     * Forwards a SEND made on this node to the other nodes of the cluster, if there is one
+     */
+    public void publishToCluster(String channel, Map<String, String> headers, String body) {
+        ClusterBridge bridge = cluster;
+        if (bridge != null) {
+            bridge.publish(channel, headers, body);
+        }
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public void setTimers(TimingWheel timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * @return the server's timer wheel, null if the server did not provide one
+     */
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Lets large fan-outs run on the given pool, split into {@code parallelism} partitions
+     */
+    public void setWorkers(ActorThreadPool workers, int parallelism) {
+        Object[] keys = new Object[Math.max(1, parallelism)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+        }
+        this.partitions = keys;
+        this.workers = workers;
+    }
+
+    /**
+     * Gives admission control a backlog to watch when there is no worker pool: the number of connections
+     * whose outbound frames are waiting for, or held by, a writer
+     */
+    public void setWriterBacklog(IntSupplier backlog) {
+        this.writerBacklog = backlog;
+    }
+
+    /**
+     * Runs {@code deliver} for every subscription. Above the threshold the subscriptions are split by
+     * connection id into partitions that run on the worker pool; each partition is an actor, so it
+     * delivers in submission order and every subscriber still sees one publisher's messages in order.
+     *
+     * @param inFlight the publisher's count of partitions not yet delivered; while it is non-zero even
+     *                 small fan-outs take the partitioned path so they cannot overtake earlier ones
+     */
+    public void fanOut(List<Subscription> subs, Consumer<Subscription> deliver, AtomicInteger inFlight) {
+        ActorThreadPool pool = workers;
+        if (pool == null || (subs.size() < config.parallelFanOutThreshold && inFlight.get() == 0)) {
+            for (Subscription sub : subs) {
+                deliver.accept(sub);
+            }
+            return;
+        }
 
-        for (ConcurrentLinkedQueue<Integer> q : channelSubscribers.values()) {
-            q.remove(connectionId);
+        Object[] keys = partitions;
+        List<List<Subscription>> chunks = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            chunks.add(null);
+        }
+        for (Subscription sub : subs) {
+            int p = (sub.connectionId & Integer.MAX_VALUE) % keys.length;
+            List<Subscription> chunk = chunks.get(p);
+            if (chunk == null) {
+                chunks.set(p, chunk = new ArrayList<>());
+            }
+            chunk.add(sub);
+        }
+
+        for (int p = 0; p < keys.length; p++) {
+            List<Subscription> chunk = chunks.get(p);
+            if (chunk == null) continue;
+            inFlight.incrementAndGet();
+            pool.submit(keys[p], () -> {
+                try {
+                    for (Subscription sub : chunk) {
+                        deliver.accept(sub);
+                    }
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
         }
     }
 
+    /**
+     * Runs a task on the connection's actor: the worker pool in reactor mode, otherwise under the
+     * handler's lock, which its reading thread also holds while processing a frame
+     *
+     * @return false if the connection is gone, and the task was not run
+     */
+    public boolean execute(int connectionId, Runnable task) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler == null) return false;
+
+        ActorThreadPool pool = workers;
+        if (pool != null) {
+            pool.submit(handler, task);
+        } else {
+            synchronized (handler) {
+                task.run();
+            }
+        }
+        return true;
+    }
+
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
         activeConnections.put(connectionId, handler);
+        openConnections.incrementAndGet();
+    }
+
+    public void setHeartbeat(int connectionId, long outgoingMs, long incomingMs) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.setHeartbeat(outgoingMs, incomingMs);
+        }
+    }
+
+    /**
+     * Folds a report published on {@code channel} into the channel's game state, if anyone here is
+     * subscribed to the channel
+     */
+    public void recordReport(String channel, GameState.Report report) {
+        if (topics.match(channel).isEmpty()) return;
+        GameState state = gameStates.computeIfAbsent(channel, k -> new GameState());
+        state.apply(report);
+        // the last subscriber may have left between the check and the insert, and missed this entry
+        if (topics.match(channel).isEmpty()) {
+            gameStates.remove(channel, state);
+        }
+    }
+
+    /**
+     * @return the channel's game state as a report body, null if nothing was reported on it yet
+     */
+    public String snapshot(String channel) {
+        GameState state = gameStates.get(channel);
+        return state == null ? null : state.render();
+    }
+
+    /**
+     * Puts the connection under the per-user limits of {@code login}, if any are configured, and gives it
+     * the user's share of the worker pool
+     */
+    public void limitUser(int connectionId, String login) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.setUserLimit(userLimits.computeIfAbsent(login, k -> config.userLimiter()));
+            ActorThreadPool pool = workers;
+            if (pool != null) {
+                pool.setWeight(handler, config.weightOf(login));
+            }
+        }
+    }
+
+    /**
+     * @return true while the worker pool, or in thread-per-client mode the writers, are too far behind to
+     * take on new sessions
+     */
+    public boolean isOverloaded() {
+        ActorThreadPool pool = workers;
+        if (pool != null) return pool.backlog() > config.admissionBacklog;
+        IntSupplier writes = writerBacklog;
+        return writes != null && writes.getAsInt() > config.admissionBacklog;
+    }
+
+    public Subscription subscribe(String destination, int connectionId, String subscriptionId, MessageSelector selector, boolean deflate) {
+        return subscribe(destination, connectionId, subscriptionId, selector, deflate, Subscription.ACK_AUTO, 0, null, null);
+    }
+
+    /**
+     * @param prefetch credit of a client-ack subscription; 0 takes the configured default
+     * @param group    consumer group to join, null to receive every message
+     * @param balance  how the group spreads messages if this subscription creates it, null for round-robin
+     */
+    public Subscription subscribe(String destination, int connectionId, String subscriptionId, MessageSelector selector,
+                                  boolean deflate, String ack, int prefetch, String group, String balance) {
+        DeliveryWindow window = null;
+        if (!Subscription.ACK_AUTO.equals(ack)) {
+            window = new DeliveryWindow(prefetch > 0 ? prefetch : config.ackPrefetch, config.maxOutboundFrames);
+        }
+        ConsumerGroup members = group == null ? null : joinGroup(group, destination, balance);
+        Subscription sub = new Subscription(connectionId, subscriptionId, destination, selector, deflate, ack, window, members);
+        Subscription previous = replace(connectionId, subscriptionId, sub);
+        if (previous != null) {
+            remove(previous);
+        }
+        topics.add(sub);
+        // groups are per node: peers' publishes never reach a group member, so its interest is not announced
+        if (cluster != null && members == null) {
+            cluster.interest(destination, true);
+        }
+        return sub;
+    }
+
+    /**
+     * Subscribes a resumed connection the way a parked subscription was
+     */
+    public Subscription resubscribe(Subscription parked, int connectionId, boolean deflate) {
+        return subscribe(parked.destination, connectionId, parked.id, parked.selector, deflate, parked.ack,
+                parked.window == null ? 0 : parked.window.prefetch,
+                parked.group == null ? null : parked.group.name,
+                parked.group == null ? null : parked.group.balance);
+    }
+
+    public void unsubscribe(int connectionId, String subscriptionId) {
+        Subscription sub = replace(connectionId, subscriptionId, null);
+        if (sub != null) {
+            remove(sub);
+        }
+    }
+
+    /**
+     * Puts {@code sub} in place of the connection's subscription with the given id, or removes that one
+     * if {@code sub} is null
+     *
+     * @return the subscription replaced, null if there was none
+     */
+    private Subscription replace(int connectionId, String subscriptionId, Subscription sub) {
+        Subscription[] replaced = new Subscription[1];
+        subscriptionsByConnection.compute(connectionId, subs -> {
+            int n = subs == null ? 0 : subs.length;
+            int i = 0;
+            while (i < n && !subs[i].id.equals(subscriptionId)) i++;
+            if (i < n) {
+                replaced[0] = subs[i];
+            }
+            if (sub == null) {
+                if (i == n) return subs;
+                if (n == 1) return null;
+                Subscription[] rest = new Subscription[n - 1];
+                System.arraycopy(subs, 0, rest, 0, i);
+                System.arraycopy(subs, i + 1, rest, i, n - 1 - i);
+                return rest;
+            }
+            Subscription[] next = i < n ? subs.clone() : n == 0 ? new Subscription[1] : Arrays.copyOf(subs, n + 1);
+            next[i] = sub;
+            return next;
+        });
+        return replaced[0];
+    }
+
+    private void remove(Subscription sub) {
+        topics.remove(sub);
+        forgetGames(sub.destination);
+        if (cluster != null && sub.group == null) {
+            cluster.interest(sub.destination, false);
+        }
+        if (sub.group != null) {
+            leaveGroup(sub.group);
+        }
+    }
+
+    /**
+     * Drops the game state of the channels under {@code destination} that no subscription matches any more
+     */
+    private void forgetGames(String destination) {
+        if (gameStates.isEmpty()) return;
+        if (!TopicTrie.isPattern(destination)) {
+            if (topics.match(destination).isEmpty()) {
+                gameStates.remove(destination);
+            }
+            return;
+        }
+        gameStates.keySet().removeIf(channel -> TopicTrie.matches(destination, channel) && topics.match(channel).isEmpty());
     }
 
-    public void subscribe(String channel, int connectionId) {
-        channelSubscribers
-                .computeIfAbsent(channel, k -> new ConcurrentLinkedQueue<>())
-                .add(connectionId);
+    /**
+     * Groups are keyed by destination and name; the map entry is created by the first member and removed
+     * with the last, both under that entry's lock only
+     */
+    private ConsumerGroup joinGroup(String name, String destination, String balance) {
+        return groups.compute(destination + '\n' + name, (key, group) -> {
+            if (group == null) {
+                group = new ConsumerGroup(name, destination, balance == null ? ConsumerGroup.ROUND_ROBIN : balance);
+            }
+            group.members.incrementAndGet();
+            return group;
+        });
     }
 
-    public void unsubscribe(String channel, int connectionId) {
-        ConcurrentLinkedQueue<Integer> subscribers = channelSubscribers.get(channel);
-        if (subscribers != null) {
-            subscribers.remove(connectionId);
+    private void leaveGroup(ConsumerGroup group) {
+        groups.computeIfPresent(group.destination + '\n' + group.name,
+                (key, current) -> current.members.decrementAndGet() == 0 ? null : current);
+    }
+
+    /**
+     * @return the subscriptions matching a concrete destination, wildcard ones included
+     */
+    public List<Subscription> getSubscribers(String channel) {
+        return topics.match(channel);
+    }
+
+    /**
+     * @return who gets a message published on {@code channel}: every matching subscription whose selector
+     * accepts it, except that of each consumer group only one accepting member is picked
+     */
+    public List<Subscription> recipients(String channel, MessageBody payload) {
+        return recipients(channel, payload, true);
+    }
+
+    /**
+     * @param withGroups false for a publish made on another node: consumer groups only share the messages
+     *                   published on their own node, so their members are left out
+     */
+    public List<Subscription> recipients(String channel, MessageBody payload, boolean withGroups) {
+        List<Subscription> matched = topics.match(channel);
+        List<Subscription> recipients = new ArrayList<>(matched.size());
+        Map<ConsumerGroup, List<Subscription>> grouped = null;
+        for (Subscription sub : matched) {
+            if (sub.group != null && !withGroups) continue;
+            if (sub.selector != null && !sub.accepts(payload.properties())) continue;
+            if (sub.group == null) {
+                recipients.add(sub);
+            } else {
+                if (grouped == null) grouped = new HashMap<>();
+                grouped.computeIfAbsent(sub.group, k -> new ArrayList<>()).add(sub);
+            }
+        }
+        if (grouped != null) {
+            for (Map.Entry<ConsumerGroup, List<Subscription>> e : grouped.entrySet()) {
+                recipients.add(e.getKey().choose(e.getValue(), this::outstanding));
+            }
         }
+        return recipients;
     }
 
-    public ConcurrentLinkedQueue<Integer> getSubscribers(String channel) {
-        return channelSubscribers.get(channel);
+    private int outstanding(Subscription sub) {
+        ConnectionHandler<T> handler = activeConnections.get(sub.connectionId);
+        int queued = handler == null ? Integer.MAX_VALUE / 2 : handler.backlog();
+        return sub.window == null ? queued : queued + sub.window.backlog();
+    }
+
+    /**
+     * @return the connection's subscriptions as they are now; read only
+     */
+    public Collection<Subscription> getSubscriptions(int connectionId) {
+        Subscription[] subs = subscriptionsByConnection.get(connectionId);
+        return subs == null ? Collections.emptyList() : Arrays.asList(subs);
     }
 
     public void unsubscribeAll(int connectionId) {
-        for (ConcurrentLinkedQueue<Integer> q : channelSubscribers.values()) {
-            q.remove(connectionId);
+        Subscription[] subs = subscriptionsByConnection.remove(connectionId);
+        if (subs != null) {
+            for (Subscription sub : subs) {
+                remove(sub);
+            }
         }
     }
 }
@@ -0,0 +1,63 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Subscriptions that share the messages of a destination: each message goes to one member rather than
+ * to all of them. Members are the group's subscriptions in the topic index, so joining and leaving only
+ * touch the group's own member count; picking a member needs no lock at all.
+ * <p>
+ * In a cluster a group is local to each node: it shares the messages published on that node among the
+ * node's members, and publishes that come from peers are not delivered to it. Clients that want one group
+ * across nodes publish on the node where its members are connected.
+ */
+public class ConsumerGroup {
+
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_OUTSTANDING = "least-outstanding";
+
+    public final String name;
+    public final String destination;
+    // ROUND_ROBIN or LEAST_OUTSTANDING, fixed by the member that created the group
+    public final String balance;
+
+    final AtomicInteger members = new AtomicInteger(0);
+    private final AtomicInteger cursor = new AtomicInteger(0);
+
+    public ConsumerGroup(String name, String destination, String balance) {
+        this.name = name;
+        this.destination = destination;
+        this.balance = balance;
+    }
+
+    public static boolean isBalance(String balance) {
+        return ROUND_ROBIN.equals(balance) || LEAST_OUTSTANDING.equals(balance);
+    }
+
+    /**
+     * @param candidates the group's members that accept the message, at least one
+     * @param outstanding messages a member has yet to take: queued for writing or unacknowledged
+     */
+    public Subscription choose(List<Subscription> candidates, ToIntFunction<Subscription> outstanding) {
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        if (!LEAST_OUTSTANDING.equals(balance)) {
+            return candidates.get(start);
+        }
+
+        // scanning from the rotating start spreads ties instead of always favouring the first member
+        Subscription best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            Subscription sub = candidates.get((start + i) % candidates.size());
+            int load = outstanding.applyAsInt(sub);
+            if (load < bestLoad) {
+                best = sub;
+                bestLoad = load;
+                if (load == 0) break;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,125 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * Credit of one client-ack subscription: at most {@code prefetch} messages are out unacknowledged,
+ * the rest wait here in order until ACK/NACK frees a slot. Frames go out while the window is locked,
+ * so messages admitted on a publisher's thread and ones released by an ACK cannot pass each other.
+ */
+public class DeliveryWindow {
+
+    public final int prefetch;
+    private final int maxWaiting;
+
+    // guarded by this; ids of the messages out, in delivery order, in a ring that grows up to prefetch.
+    // Acks mostly come in order, so the one settled is almost always at the head
+    private int[] unacked;
+    private int head = 0;
+    private int count = 0;
+    private final Queue<Waiting> waiting = new ArrayDeque<>();
+
+    private static final class Waiting {
+        final int messageId;
+        final String frame;
+
+        Waiting(int messageId, String frame) {
+            this.messageId = messageId;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * @param maxWaiting how many messages may wait for credit; 0 means no limit
+     */
+    public DeliveryWindow(int prefetch, int maxWaiting) {
+        this.prefetch = prefetch;
+        this.maxWaiting = maxWaiting;
+        this.unacked = new int[Math.max(1, Math.min(prefetch, 16))];
+    }
+
+    /**
+     * Sends the message through {@code out} if there is credit, otherwise keeps it for later
+     *
+     * @return false if the message could not even be kept: the consumer is too far behind
+     */
+    public synchronized boolean offer(int messageId, String frame, Consumer<String> out) {
+        if (waiting.isEmpty() && count < prefetch) {
+            deliver(messageId);
+            out.accept(frame);
+            return true;
+        }
+        if (maxWaiting > 0 && waiting.size() >= maxWaiting) {
+            return false;
+        }
+        waiting.add(new Waiting(messageId, frame));
+        return true;
+    }
+
+    /**
+     * @return messages sent and not yet settled plus those waiting for credit
+     */
+    public synchronized int backlog() {
+        return count + waiting.size();
+    }
+
+    /**
+     * Settles a delivered message, and with {@code cumulative} every one delivered before it, then
+     * sends waiting messages into the freed credit
+     *
+     * @return false if the message is not outstanding on this subscription
+     */
+    public synchronized boolean settle(int messageId, boolean cumulative, Consumer<String> out) {
+        int at = indexOf(messageId);
+        if (at < 0) return false;
+        if (cumulative) {
+            head = slot(at + 1);
+            count -= at + 1;
+        } else if (at == 0) {
+            head = slot(1);
+            count--;
+        } else {
+            for (int i = at; i < count - 1; i++) {
+                unacked[slot(i)] = unacked[slot(i + 1)];
+            }
+            count--;
+        }
+
+        Waiting next;
+        while (count < prefetch && (next = waiting.poll()) != null) {
+            deliver(next.messageId);
+            out.accept(next.frame);
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the message among those out, or -1
+     */
+    private int indexOf(int messageId) {
+        for (int i = 0; i < count; i++) {
+            if (unacked[slot(i)] == messageId) return i;
+        }
+        return -1;
+    }
+
+    private int slot(int position) {
+        int slot = head + position;
+        return slot < unacked.length ? slot : slot - unacked.length;
+    }
+
+    private void deliver(int messageId) {
+        if (count == unacked.length) {
+            int[] grown = new int[(int) Math.min(2L * unacked.length, prefetch)];
+            for (int i = 0; i < count; i++) {
+                grown[i] = unacked[slot(i)];
+            }
+            unacked = grown;
+            head = 0;
+        }
+        unacked[slot(count)] = messageId;
+        count++;
+    }
+}
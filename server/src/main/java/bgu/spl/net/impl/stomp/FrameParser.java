@@ -0,0 +1,317 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Splits a text frame into command, headers and body in a single pass, without line arrays or a map
+ * per frame. One parser serves one connection: its header map is refilled by every frame, so code that
+ * keeps headers past the frame (a CONNECT waiting for the database, a transaction) takes a copy.
+ * Well-known commands, header names and header values come out as shared constants rather than
+ * substrings; anything else is cut out of the frame as before. Keys and values are trimmed, and a
+ * repeated header keeps its last value.
+ * <p>
+ * Binary frames never become text: {@link BinaryStompEncoderDecoder} fills the parser field by field
+ * and hands on {@link #PARSED} in place of a frame.
+ */
+public final class FrameParser {
+
+    /**
+     * Returned by a decoder in place of a frame it parsed straight into its parser. Compare by identity.
+     */
+    public static final String PARSED = new String("(parsed frame)");
+
+    private static final String[] COMMANDS = {
+            "CONNECT", "STOMP", "SUBSCRIBE", "UNSUBSCRIBE", "SEND", "ACK", "NACK", "BEGIN", "COMMIT", "ABORT",
+            "DISCONNECT"
+    };
+
+    private static final String[] NAMES = {
+            "destination", "receipt", "id", "ack", "transaction", "content-length", "content-type", "login",
+            "passcode", "accept-version", "host", "heart-beat", "selector", "prefetch-count", "consumer-group",
+            "consumer-group-balance", "snapshot", "resume-token", "accept-encoding", "file", "message-id",
+            "subscription"
+    };
+
+    private static final String[] VALUES = {
+            "true", "false", "auto", "client", "client-individual", "1.2", "1.0,1.1,1.2", "0,0",
+            MessageBody.DEFLATE, ConsumerGroup.ROUND_ROBIN, ConsumerGroup.LEAST_OUTSTANDING
+    };
+
+    private static final String[][] COMMANDS_BY_LENGTH = byLength(COMMANDS);
+    private static final String[][] NAMES_BY_LENGTH = byLength(NAMES);
+    private static final String[][] VALUES_BY_LENGTH = byLength(VALUES);
+
+    private final Headers headers = new Headers();
+    private String command;
+    private String body;
+    // the text the frame was parsed from; null for one filled in field by field
+    private String source;
+
+    /**
+     * Parses {@code frame}; the results stay valid until the next call
+     */
+    public void parse(String frame) {
+        headers.clear();
+        source = frame;
+        int len = frame.length();
+        int eol = lineEnd(frame, 0);
+        command = lookup(COMMANDS_BY_LENGTH, frame, trimStart(frame, 0, eol), trimEnd(frame, 0, eol));
+
+        int pos = eol + 1;
+        body = "";
+        while (pos <= len) {
+            int end = lineEnd(frame, pos);
+            int from = trimStart(frame, pos, end);
+            int to = trimEnd(frame, from, end);
+            if (from == to) {
+                // the blank line; the body is everything after it
+                body = end + 1 < len ? frame.substring(end + 1) : "";
+                return;
+            }
+            int colon = frame.indexOf(':', from);
+            if (colon >= 0 && colon < to) {
+                String key = lookup(NAMES_BY_LENGTH, frame, from, trimEnd(frame, from, colon));
+                String value = lookup(VALUES_BY_LENGTH, frame, trimStart(frame, colon + 1, to), to);
+                headers.put(key, value);
+            }
+            pos = end + 1;
+        }
+    }
+
+    public String command() {
+        return command;
+    }
+
+    public Map<String, String> headers() {
+        return headers;
+    }
+
+    public String body() {
+        return body;
+    }
+
+    /**
+     * Starts a frame that a decoder fills in field by field; it stays valid until the next frame
+     */
+    void start(String command) {
+        headers.clear();
+        source = null;
+        this.command = command;
+        body = "";
+    }
+
+    void header(String key, String value) {
+        headers.put(key, value);
+    }
+
+    void body(String body) {
+        this.body = body;
+    }
+
+    /**
+     * @return the frame on its own, unaffected by the frames this parser takes next
+     */
+    public FrameParser copy() {
+        FrameParser copy = new FrameParser();
+        copy.command = command;
+        copy.body = body;
+        copy.source = source;
+        copy.headers.keys = Arrays.copyOf(headers.keys, headers.keys.length);
+        copy.headers.values = Arrays.copyOf(headers.values, headers.values.length);
+        copy.headers.size = headers.size;
+        return copy;
+    }
+
+    /**
+     * @return the frame as text: the text it was parsed from, or one written out for a filled in frame
+     */
+    @Override
+    public String toString() {
+        if (source != null) return source;
+        StringBuilder sb = new StringBuilder().append(command).append('\n');
+        for (int i = 0; i < headers.size; i++) {
+            sb.append(headers.keys[i]).append(':').append(headers.values[i]).append('\n');
+        }
+        return sb.append('\n').append(body).toString();
+    }
+
+    /**
+     * @return the header name in the UTF-8 bytes[from, to), trimmed, as a constant if it is a known one
+     */
+    static String name(byte[] bytes, int from, int to) {
+        return lookup(NAMES_BY_LENGTH, bytes, trimStart(bytes, from, to), trimEnd(bytes, from, to));
+    }
+
+    /**
+     * @return the header value in the UTF-8 bytes[from, to), trimmed, as a constant if it is a known one
+     */
+    static String value(byte[] bytes, int from, int to) {
+        return lookup(VALUES_BY_LENGTH, bytes, trimStart(bytes, from, to), trimEnd(bytes, from, to));
+    }
+
+    private static int lineEnd(String s, int from) {
+        int eol = s.indexOf('\n', from);
+        return eol < 0 ? s.length() : eol;
+    }
+
+    private static int trimStart(String s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') from++;
+        return from;
+    }
+
+    private static int trimEnd(String s, int from, int to) {
+        while (to > from && s.charAt(to - 1) <= ' ') to--;
+        return to;
+    }
+
+    private static int trimStart(byte[] b, int from, int to) {
+        while (from < to && (b[from] & 0xFF) <= ' ') from++;
+        return from;
+    }
+
+    private static int trimEnd(byte[] b, int from, int to) {
+        while (to > from && (b[to - 1] & 0xFF) <= ' ') to--;
+        return to;
+    }
+
+    /**
+     * @return the constant spelled by b[from, to), or those bytes decoded if there is none
+     */
+    private static String lookup(String[][] table, byte[] b, int from, int to) {
+        int n = to - from;
+        if (n < table.length) {
+            for (String candidate : table[n]) {
+                if (spells(b, from, candidate)) return candidate;
+            }
+        }
+        return new String(b, from, n, StandardCharsets.UTF_8);
+    }
+
+    private static boolean spells(byte[] b, int from, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (b[from + i] != ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the constant spelled by s[from, to), or that substring if there is none
+     */
+    private static String lookup(String[][] table, String s, int from, int to) {
+        int n = to - from;
+        if (n < table.length) {
+            for (String candidate : table[n]) {
+                if (s.regionMatches(from, candidate, 0, n)) return candidate;
+            }
+        }
+        return s.substring(from, to);
+    }
+
+    private static String[][] byLength(String[] words) {
+        int max = 0;
+        for (String w : words) max = Math.max(max, w.length());
+        String[][] table = new String[max + 1][0];
+        for (String w : words) {
+            String[] bucket = Arrays.copyOf(table[w.length()], table[w.length()].length + 1);
+            bucket[bucket.length - 1] = w;
+            table[w.length()] = bucket;
+        }
+        return table;
+    }
+
+    /**
+     * A handful of headers in two parallel arrays, looked up by scanning; frames carry few headers, and
+     * refilling the arrays allocates nothing once they are large enough
+     */
+    private static final class Headers extends AbstractMap<String, String> {
+        private String[] keys = new String[8];
+        private String[] values = new String[8];
+        private int size = 0;
+
+        @Override
+        public String get(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : values[i];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            int i = indexOf(key);
+            if (i >= 0) {
+                String previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size++] = value;
+            return null;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) return i;
+            }
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next >= size) throw new NoSuchElementException();
+                            int i = next++;
+                            return new SimpleImmutableEntry<>(keys[i], values[i]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+}
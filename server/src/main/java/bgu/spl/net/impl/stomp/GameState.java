@@ -0,0 +1,166 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running state of the game reported on one channel, folded in report by report so that a late joiner
+ * can get it in a single frame instead of replaying the channel's history. Reports use the client's body
+ * layout ("team a : ...", "general game updates :", "team a updates :", ...). For every stat the value of
+ * the latest report by game time wins, whichever order the reports arrive in.
+ */
+public class GameState {
+
+    private static final String GENERAL = "general game updates";
+    private static final String TEAM_A = "team a updates";
+    private static final String TEAM_B = "team b updates";
+    private static final String DESCRIPTION = "description";
+
+    /**
+     * One parsed report
+     */
+    public static final class Report {
+        final String teamA;
+        final String teamB;
+        final String eventName;
+        final int time;
+        final Map<String, String> general;
+        final Map<String, String> a;
+        final Map<String, String> b;
+
+        private Report(String teamA, String teamB, String eventName, int time,
+                       Map<String, String> general, Map<String, String> a, Map<String, String> b) {
+            this.teamA = teamA;
+            this.teamB = teamB;
+            this.eventName = eventName;
+            this.time = time;
+            this.general = general;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private static final class Stat {
+        final String value;
+        final int time;
+
+        Stat(String value, int time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    // all guarded by this
+    private String teamA;
+    private String teamB;
+    private String lastEvent;
+    private int lastTime = Integer.MIN_VALUE;
+    private int reports = 0;
+    private final Map<String, Stat> general = new TreeMap<>();
+    private final Map<String, Stat> a = new TreeMap<>();
+    private final Map<String, Stat> b = new TreeMap<>();
+
+    /**
+     * @return the report in {@code body}, null if it is not one
+     */
+    public static Report parse(String body) {
+        // most publishes are not reports; spare them the line split
+        if (!body.contains("event name")) return null;
+        String teamA = null;
+        String teamB = null;
+        String eventName = null;
+        int time = 0;
+        Map<String, String> section = null;
+        Map<String, String> general = new TreeMap<>();
+        Map<String, String> a = new TreeMap<>();
+        Map<String, String> b = new TreeMap<>();
+
+        for (String line : body.split("\n")) {
+            String t = line.trim();
+            if (t.isEmpty()) continue;
+            if (t.startsWith(DESCRIPTION)) break;
+            if (t.startsWith(GENERAL)) {
+                section = general;
+                continue;
+            }
+            if (t.startsWith(TEAM_A)) {
+                section = a;
+                continue;
+            }
+            if (t.startsWith(TEAM_B)) {
+                section = b;
+                continue;
+            }
+
+            int colon = t.indexOf(':');
+            if (colon < 0) continue;
+            String key = t.substring(0, colon).trim();
+            String value = t.substring(colon + 1).trim();
+            if (section != null) {
+                section.put(key, value);
+            } else if (key.equals("team a")) {
+                teamA = value;
+            } else if (key.equals("team b")) {
+                teamB = value;
+            } else if (key.equals("event name")) {
+                eventName = value;
+            } else if (key.equals("time")) {
+                try {
+                    time = Integer.parseInt(value);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        if (teamA == null || teamB == null || eventName == null) return null;
+        return new Report(teamA, teamB, eventName, time, general, a, b);
+    }
+
+    public synchronized void apply(Report report) {
+        if (teamA == null) {
+            teamA = report.teamA;
+            teamB = report.teamB;
+        }
+        if (report.time >= lastTime) {
+            lastTime = report.time;
+            lastEvent = report.eventName;
+        }
+        reports++;
+        merge(general, report.general, report.time);
+        merge(a, report.a, report.time);
+        merge(b, report.b, report.time);
+    }
+
+    private static void merge(Map<String, Stat> into, Map<String, String> updates, int time) {
+        for (Map.Entry<String, String> e : updates.entrySet()) {
+            Stat current = into.get(e.getKey());
+            if (current == null || time >= current.time) {
+                into.put(e.getKey(), new Stat(e.getValue(), time));
+            }
+        }
+    }
+
+    /**
+     * @return the state as a report body, null before the first report
+     */
+    public synchronized String render() {
+        if (reports == 0) return null;
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("team a : ").append(teamA).append('\n');
+        sb.append("team b : ").append(teamB).append('\n');
+        sb.append("event name : ").append(lastEvent).append('\n');
+        sb.append("time : ").append(lastTime).append('\n');
+        sb.append("reports : ").append(reports).append('\n');
+        render(sb, GENERAL, general);
+        render(sb, TEAM_A, a);
+        render(sb, TEAM_B, b);
+        return sb.toString();
+    }
+
+    private static void render(StringBuilder sb, String title, Map<String, Stat> stats) {
+        sb.append(title).append(" :\n");
+        for (Map.Entry<String, Stat> e : stats.entrySet()) {
+            sb.append(e.getKey()).append(" : ").append(e.getValue().value).append('\n');
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * The body of one publish, shared by every subscriber it is fanned out to, possibly from several threads.
+ * The deflated form and the selector properties are each computed at most once, the first time a
+ * subscriber needs them, and reused for all the others.
+ */
+public class MessageBody {
+
+    public static final String DEFLATE = "deflate";
+
+    // below this size the base64 overhead eats the gain
+    private static final int MIN_COMPRESS_BYTES = 256;
+
+    /**
+     * Preset dictionary for the game report bodies the client sends. Deflate favours matches near the end
+     * of the dictionary, so the most frequent strings come last. Clients must inflate with the same bytes.
+     */
+    public static final byte[] DICTIONARY = (
+            "yellow card red card substitution offside penalty corner free kick foul injury half time "
+            + "extra time final whistle halftime the ball into the net header shot save keeper goalkeeper "
+            + "What an incredible with a brilliant from the left right the box, and the game has started! "
+            + "possession: goals: active: false active: true before halftime: false before halftime: true "
+            + "description :\n"
+            + "team b updates :\n"
+            + "team a updates :\n"
+            + "general game updates :\n"
+            + "active : true\n"
+            + "before halftime : true\n"
+            + "possession : \n"
+            + "goals : \n"
+            + "time : \n"
+            + "event name : \n"
+            + "team b : \n"
+            + "team a : \n"
+            + "user : "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    public final String plain;
+    // byte length for a content-length header when the body holds NULs, -1 when the NUL terminator suffices
+    public final int contentLength;
+    private final Map<String, String> headers;
+    private volatile String deflated;
+    private volatile boolean deflateTried = false;
+    private volatile Map<String, String> properties = null;
+
+    /**
+     * @param headers the SEND headers; they are only read while the publish is routed to its recipients,
+     *                so the map may be reused once {@link ConnectionsImpl#recipients} returns
+     */
+    public MessageBody(Map<String, String> headers, String plain) {
+        this.headers = headers;
+        this.plain = plain == null ? "" : plain;
+        this.contentLength = this.plain.indexOf('\0') >= 0 ? this.plain.getBytes(StandardCharsets.UTF_8).length : -1;
+    }
+
+    /**
+     * What selectors see: the SEND headers, plus the leading "key : value" lines of a game report body
+     * with spaces in keys turned into '-' (e.g. "event name : goal" becomes event-name=goal).
+     */
+    public Map<String, String> properties() {
+        Map<String, String> props = properties;
+        if (props == null) {
+            synchronized (this) {
+                if (properties == null) {
+                    properties = parseProperties();
+                }
+                props = properties;
+            }
+        }
+        return props;
+    }
+
+    private Map<String, String> parseProperties() {
+        Map<String, String> props = new HashMap<>(headers);
+        int start = 0;
+        while (start < plain.length()) {
+            int end = plain.indexOf('\n', start);
+            if (end < 0) end = plain.length();
+            String line = plain.substring(start, end);
+            start = end + 1;
+
+            int idx = line.indexOf(':');
+            if (idx < 0) break;
+            String val = line.substring(idx + 1).trim();
+            if (val.isEmpty()) break; // a section such as "general game updates :"
+            String key = line.substring(0, idx).trim().replace(' ', '-');
+            props.putIfAbsent(key, val);
+        }
+        return props;
+    }
+
+    /**
+     * @return the base64 of the deflated body, or null if compressing does not pay off
+     */
+    public String deflated() {
+        if (!deflateTried) {
+            synchronized (this) {
+                if (!deflateTried) {
+                    deflated = deflate(plain);
+                    deflateTried = true;
+                }
+            }
+        }
+        return deflated;
+    }
+
+    private static String deflate(String text) {
+        byte[] input = text.getBytes(StandardCharsets.UTF_8);
+        if (input.length < MIN_COMPRESS_BYTES) return null;
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+
+        byte[] out = new byte[input.length];
+        int len = 0;
+        while (!deflater.finished() && len < out.length) {
+            len += deflater.deflate(out, len, out.length - len);
+        }
+        if (!deflater.finished()) return null;
+
+        String encoded = Base64.getEncoder().encodeToString(Arrays.copyOf(out, len));
+        return encoded.length() < input.length ? encoded : null;
+    }
+}
@@ -0,0 +1,325 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * A compiled SUBSCRIBE {@code selector}: a small SQL-like condition over message properties, e.g.
+ * {@code event-name LIKE 'goal%' AND team-a = 'Germany'}.
+ * Supports AND, OR, NOT, parentheses, =, <>, !=, <, <=, >, >=, [NOT] LIKE, [NOT] IN (...) and IS [NOT] NULL.
+ * Evaluation is three-valued as in SQL: a comparison with a missing property is unknown, and only a
+ * definite true selects the message.
+ */
+public class MessageSelector {
+
+    // selectors run on every publish to the destination, so their size is bounded
+    public static final int MAX_LENGTH = 1024;
+
+    private interface Expr {
+        /** @return TRUE, FALSE or null for unknown */
+        Boolean eval(Map<String, String> props);
+    }
+
+    private final String source;
+    private final Expr root;
+
+    private MessageSelector(String source, Expr root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression does not parse
+     */
+    public static MessageSelector compile(String source) {
+        if (source.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("Selector longer than " + MAX_LENGTH + " characters");
+        }
+        Parser parser = new Parser(source);
+        Expr root = parser.parseOr();
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in selector");
+        }
+        return new MessageSelector(source, root);
+    }
+
+    public boolean matches(Map<String, String> props) {
+        return Boolean.TRUE.equals(root.eval(props));
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static Boolean not(Boolean b) {
+        return b == null ? null : !b;
+    }
+
+    private static Double number(String s) {
+        try {
+            return Double.valueOf(s);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static int compare(String a, String b) {
+        Double x = number(a);
+        Double y = number(b);
+        if (x != null && y != null) return Double.compare(x, y);
+        return a.compareTo(b);
+    }
+
+    /**
+     * A LIKE pattern: the runs between '%' wildcards, in which '_' stands for any one character. Each run
+     * is placed at its leftmost fit after the previous one, which is always safe since the '%' after it can
+     * absorb whatever follows, so matching never backtracks and costs at most the value's length times the
+     * pattern's, whatever the pattern.
+     */
+    static final class LikePattern {
+        private final String[] runs;
+
+        LikePattern(String like) {
+            this.runs = like.split("%", -1);
+        }
+
+        boolean matches(String value) {
+            String first = runs[0];
+            if (runs.length == 1) {
+                return value.length() == first.length() && fits(value, 0, first);
+            }
+            String last = runs[runs.length - 1];
+            int end = value.length() - last.length();
+            if (end < first.length() || !fits(value, 0, first) || !fits(value, end, last)) return false;
+
+            int pos = first.length();
+            for (int r = 1; r < runs.length - 1; r++) {
+                String run = runs[r];
+                while (pos + run.length() <= end && !fits(value, pos, run)) pos++;
+                if (pos + run.length() > end) return false;
+                pos += run.length();
+            }
+            return true;
+        }
+
+        private static boolean fits(String value, int at, String run) {
+            for (int i = 0; i < run.length(); i++) {
+                char c = run.charAt(i);
+                if (c != '_' && c != value.charAt(at + i)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Parser {
+        private final List<String> tokens;
+        private int pos = 0;
+
+        Parser(String source) {
+            this.tokens = tokenize(source);
+        }
+
+        String peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        private boolean accept(String keyword) {
+            String t = peek();
+            if (t != null && t.equalsIgnoreCase(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) {
+            if (!accept(keyword)) {
+                throw new IllegalArgumentException("Expected '" + keyword + "' in selector");
+            }
+        }
+
+        private String next() {
+            String t = peek();
+            if (t == null) throw new IllegalArgumentException("Unexpected end of selector");
+            pos++;
+            return t;
+        }
+
+        Expr parseOr() {
+            Expr left = parseAnd();
+            while (accept("OR")) {
+                Expr a = left;
+                Expr b = parseAnd();
+                left = props -> {
+                    Boolean x = a.eval(props);
+                    if (Boolean.TRUE.equals(x)) return true;
+                    Boolean y = b.eval(props);
+                    if (Boolean.TRUE.equals(y)) return true;
+                    return x == null || y == null ? null : false;
+                };
+            }
+            return left;
+        }
+
+        private Expr parseAnd() {
+            Expr left = parseNot();
+            while (accept("AND")) {
+                Expr a = left;
+                Expr b = parseNot();
+                left = props -> {
+                    Boolean x = a.eval(props);
+                    if (Boolean.FALSE.equals(x)) return false;
+                    Boolean y = b.eval(props);
+                    if (Boolean.FALSE.equals(y)) return false;
+                    return x == null || y == null ? null : true;
+                };
+            }
+            return left;
+        }
+
+        private Expr parseNot() {
+            if (accept("NOT")) {
+                Expr e = parseNot();
+                return props -> not(e.eval(props));
+            }
+            return parsePredicate();
+        }
+
+        private Expr parsePredicate() {
+            if (accept("(")) {
+                Expr e = parseOr();
+                expect(")");
+                return e;
+            }
+
+            String name = identifier(next());
+
+            if (accept("IS")) {
+                boolean negate = accept("NOT");
+                expect("NULL");
+                return props -> (props.get(name) == null) != negate;
+            }
+
+            boolean negate = accept("NOT");
+            if (accept("LIKE")) {
+                LikePattern pattern = new LikePattern(literal(next()));
+                return props -> {
+                    String v = props.get(name);
+                    if (v == null) return null;
+                    return pattern.matches(v) != negate;
+                };
+            }
+            if (accept("IN")) {
+                expect("(");
+                List<String> values = new ArrayList<>();
+                do {
+                    values.add(literal(next()));
+                } while (accept(","));
+                expect(")");
+                return props -> {
+                    String v = props.get(name);
+                    if (v == null) return null;
+                    boolean found = false;
+                    for (String candidate : values) {
+                        if (compare(v, candidate) == 0) {
+                            found = true;
+                            break;
+                        }
+                    }
+                    return found != negate;
+                };
+            }
+            if (negate) {
+                throw new IllegalArgumentException("Expected LIKE or IN after NOT in selector");
+            }
+
+            String op = next();
+            String value = literal(next());
+            switch (op) {
+                case "=":
+                    return props -> compareWith(props.get(name), value, c -> c == 0);
+                case "<>":
+                case "!=":
+                    return props -> compareWith(props.get(name), value, c -> c != 0);
+                case "<":
+                    return props -> compareWith(props.get(name), value, c -> c < 0);
+                case "<=":
+                    return props -> compareWith(props.get(name), value, c -> c <= 0);
+                case ">":
+                    return props -> compareWith(props.get(name), value, c -> c > 0);
+                case ">=":
+                    return props -> compareWith(props.get(name), value, c -> c >= 0);
+                default:
+                    throw new IllegalArgumentException("Unknown operator '" + op + "' in selector");
+            }
+        }
+
+        private static Boolean compareWith(String actual, String value, IntPredicate test) {
+            if (actual == null) return null;
+            return test.test(compare(actual, value));
+        }
+
+        private static String identifier(String token) {
+            char c = token.charAt(0);
+            if (!Character.isLetter(c) && c != '_') {
+                throw new IllegalArgumentException("Expected a header name, got '" + token + "'");
+            }
+            return token;
+        }
+
+        private static String literal(String token) {
+            if (token.charAt(0) == '\'') {
+                return token.substring(1, token.length() - 1).replace("''", "'");
+            }
+            if (number(token) == null && !token.equalsIgnoreCase("true") && !token.equalsIgnoreCase("false")) {
+                throw new IllegalArgumentException("Expected a literal, got '" + token + "'");
+            }
+            return token.toLowerCase();
+        }
+
+        private static List<String> tokenize(String s) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    int j = i + 1;
+                    while (true) {
+                        if (j >= s.length()) throw new IllegalArgumentException("Unterminated string in selector");
+                        if (s.charAt(j) == '\'') {
+                            if (j + 1 < s.length() && s.charAt(j + 1) == '\'') {
+                                j += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        j++;
+                    }
+                    tokens.add(s.substring(i, j + 1));
+                    i = j + 1;
+                } else if (c == '(' || c == ')' || c == ',' || c == '=') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '<' || c == '>' || c == '!') {
+                    int j = i + 1;
+                    if (j < s.length() && (s.charAt(j) == '=' || (c == '<' && s.charAt(j) == '>'))) j++;
+                    tokens.add(s.substring(i, j));
+                    i = j;
+                } else {
+                    int j = i;
+                    while (j < s.length() && !Character.isWhitespace(s.charAt(j)) && "()',=<>!".indexOf(s.charAt(j)) < 0) {
+                        j++;
+                    }
+                    tokens.add(s.substring(i, j));
+                    i = j;
+                }
+            }
+            return tokens;
+        }
+    }
+}
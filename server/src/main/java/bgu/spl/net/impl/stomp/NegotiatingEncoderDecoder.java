@@ -0,0 +1,75 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+
+/**
+ * Picks the framing of a connection from its first bytes: {@link BinaryStompEncoderDecoder#PREAMBLE}
+ * selects binary frames, anything else is plain text STOMP. Binary frames are parsed into
+ * {@link #frame()} and come out as {@link FrameParser#PARSED}; text frames come out as text.
+ */
+public class NegotiatingEncoderDecoder implements MessageEncoderDecoder<String> {
+
+    private final int maxFrameSize;
+    private final StompEncoderDecoder text;
+    private volatile MessageEncoderDecoder<String> framing = null;
+    private int matched = 0;
+    private FrameParser parsed = new FrameParser();
+
+    public NegotiatingEncoderDecoder() {
+        this(StompEncoderDecoder.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public NegotiatingEncoderDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        this.text = new StompEncoderDecoder(maxFrameSize);
+    }
+
+    /**
+     * Has binary frames parsed into {@code parser}, such as the one the protocol parses text frames with;
+     * must be called before the first byte
+     */
+    public void parseInto(FrameParser parser) {
+        this.parsed = parser;
+    }
+
+    /**
+     * @return where binary frames are parsed into; a frame stays there until the next one is decoded
+     */
+    public FrameParser frame() {
+        return parsed;
+    }
+
+    @Override
+    public String decodeNextByte(byte nextByte) {
+        if (framing != null) {
+            return framing.decodeNextByte(nextByte);
+        }
+
+        byte[] preamble = BinaryStompEncoderDecoder.PREAMBLE;
+        if (nextByte == preamble[matched]) {
+            if (++matched == preamble.length) {
+                framing = new BinaryStompEncoderDecoder(maxFrameSize, parsed);
+            }
+            return null;
+        }
+
+        framing = text;
+        String frame = null;
+        for (int i = 0; i < matched; i++) {
+            frame = text.decodeNextByte(preamble[i]);
+        }
+        return frame != null ? frame : text.decodeNextByte(nextByte);
+    }
+
+    @Override
+    public byte[] encode(String message) {
+        MessageEncoderDecoder<String> current = framing;
+        return current != null ? current.encode(message) : text.encode(message);
+    }
+
+    @Override
+    public byte[] heartbeat() {
+        MessageEncoderDecoder<String> current = framing;
+        return current != null ? current.heartbeat() : text.heartbeat();
+    }
+}
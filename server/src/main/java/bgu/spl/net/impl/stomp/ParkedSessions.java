@@ -0,0 +1,201 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.User;
+import bgu.spl.net.srv.TimingWheel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Sessions whose connection dropped without a DISCONNECT. They are kept for a grace period under the
+ * resumption token the client got in CONNECTED; a CONNECT presenting that token takes the session back,
+ * subscriptions included, without asking the database again. Messages published meanwhile are not kept.
+ * Tokens are single use: whoever removes a session from {@code byToken} owns it.
+ */
+public class ParkedSessions {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // first line of a saved file; a file of another format is not read
+    private static final String FORMAT = "stomp-sessions 1";
+
+    public static final class Parked {
+        public final String token;
+        public final User user;
+        public final List<Subscription> subscriptions;
+        private volatile TimingWheel.Timeout expiry;
+
+        private Parked(String token, User user, List<Subscription> subscriptions) {
+            this.token = token;
+            this.user = user;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Parked> byToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Parked> byName = new ConcurrentHashMap<>();
+
+    public static String newToken() {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * @param onExpire runs on the timer thread if nobody resumed the session within the grace period
+     */
+    public void park(String token, User user, Collection<Subscription> subscriptions, TimingWheel timers, long graceMs, Consumer<Parked> onExpire) {
+        Parked session = new Parked(token, user, new ArrayList<>(subscriptions));
+        Parked previous = byName.put(user.name, session);
+        if (previous != null && byToken.remove(previous.token, previous)) {
+            cancel(previous);
+            onExpire.accept(previous);
+        }
+        byToken.put(token, session);
+        session.expiry = timers.schedule(() -> {
+            if (byToken.remove(token, session)) {
+                byName.remove(user.name, session);
+                onExpire.accept(session);
+            }
+        }, graceMs);
+    }
+
+    /**
+     * @return the session parked under the token for that login, null if there is none (any more)
+     */
+    public Parked claim(String token, String login) {
+        Parked session = byToken.get(token);
+        if (session == null || !session.user.name.equals(login) || !byToken.remove(token, session)) {
+            return null;
+        }
+        byName.remove(login, session);
+        cancel(session);
+        return session;
+    }
+
+    /**
+     * Drops the login's parked session, if any, because the user authenticated afresh
+     */
+    public Parked evict(String login) {
+        Parked session = byName.remove(login);
+        if (session == null || !byToken.remove(session.token, session)) {
+            return null;
+        }
+        cancel(session);
+        return session;
+    }
+
+    /**
+     * Writes every parked session to {@code file}, replacing it, so that the next server process can
+     * take them over. One line per session, then one per subscription; fields are URL-encoded.
+     *
+     * @return the number of sessions written; with none, the file is removed
+     */
+    public int save(File file) throws IOException {
+        List<Parked> sessions = new ArrayList<>(byToken.values());
+        Path target = file.toPath();
+        if (sessions.isEmpty()) {
+            Files.deleteIfExists(target);
+            return 0;
+        }
+
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(FORMAT);
+            out.newLine();
+            for (Parked session : sessions) {
+                out.write("session " + encode(session.token) + ' ' + encode(session.user.name));
+                out.newLine();
+                for (Subscription sub : session.subscriptions) {
+                    out.write("sub " + encode(sub.id) + ' ' + encode(sub.destination) + ' ' + encode(sub.ack)
+                            + ' ' + (sub.window == null ? 0 : sub.window.prefetch)
+                            + ' ' + encode(sub.group == null ? null : sub.group.name)
+                            + ' ' + encode(sub.group == null ? null : sub.group.balance)
+                            + ' ' + encode(sub.selector == null ? null : sub.selector.toString()));
+                    out.newLine();
+                }
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return sessions.size();
+    }
+
+    /**
+     * Reads sessions written by {@link #save(File)}. They come back logged in, with their subscriptions
+     * as they were parked; the subscriptions are not registered anywhere until a connection resumes.
+     */
+    public static List<Parked> load(File file) throws IOException {
+        List<Parked> sessions = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!FORMAT.equals(in.readLine())) {
+                throw new IOException("not a session snapshot: " + file);
+            }
+            Parked session = null;
+            String line;
+            int lineNo = 1;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                String[] f = line.split(" ", -1);
+                try {
+                    if (f[0].equals("session") && f.length == 3) {
+                        User user = new User(-1, decode(f[2]), null);
+                        user.login();
+                        session = new Parked(decode(f[1]), user, new ArrayList<>());
+                        sessions.add(session);
+                    } else if (f[0].equals("sub") && f.length == 8 && session != null) {
+                        String id = decode(f[1]);
+                        String destination = decode(f[2]);
+                        String ack = decode(f[3]);
+                        int prefetch = Integer.parseInt(f[4]);
+                        String group = decode(f[5]);
+                        String selector = decode(f[7]);
+                        session.subscriptions.add(new Subscription(-1, id, destination,
+                                selector == null ? null : MessageSelector.compile(selector), false, ack,
+                                Subscription.ACK_AUTO.equals(ack) ? null : new DeliveryWindow(prefetch, 0),
+                                group == null ? null : new ConsumerGroup(group, destination, decode(f[6]))));
+                        session.user.addSubscription(destination, id);
+                    } else {
+                        throw new IllegalArgumentException("unexpected record");
+                    }
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(file + ":" + lineNo + ": " + ex.getMessage());
+                }
+            }
+        }
+        return sessions;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+    }
+
+    /**
+     * @return null for an empty field; no saved value is empty
+     */
+    private static String decode(String field) throws UnsupportedEncodingException {
+        return field.isEmpty() ? null : URLDecoder.decode(field, "UTF-8");
+    }
+
+    private static void cancel(Parked session) {
+        TimingWheel.Timeout expiry = session.expiry;
+        if (expiry != null) {
+            expiry.cancel();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.TimingWheel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster-wide registry of logged in users, so a login is refused on every node while it is active on
+ * any one of them. Logins are spread over the nodes by consistent hashing; the owner of a login keeps its
+ * lease, naming the node that holds the login. Taking a login is one round trip to its owner.
+ * <p>
+ * Leases expire unless the holding node renews them, which it does for all its logins a few times per
+ * lease period, so the logins of a node that died free up within one period, and at once when the node
+ * is seen to restart. A dead owner's logins move to the next live node on the ring; renewals rebuild
+ * its table there within a renewal interval, the only window in which a duplicate login can get through.
+ * <p>
+ * Within a node, sessions of one login share the node's lease: there is at most one active session,
+ * thanks to the local name reservation, plus possibly a parked one. The lease is released with the last.
+ * <p>
+ * Frames from a peer are taken on the authority of the link's authenticated node id, never on anything in
+ * the frame: a peer can only take, renew or release leases in its own name, so it cannot free or steal a
+ * login another node holds, and it can only answer the requests that were sent to it.
+ */
+public class SessionRegistry {
+
+    private static final int VIRTUAL_NODES = 64;
+    private static final long REQUEST_TIMEOUT_MS = 2000;
+    private static final int RENEWALS_PER_LEASE = 3;
+
+    private static final class Request {
+        final String owner;
+        final CompletableFuture<Boolean> reply = new CompletableFuture<>();
+
+        Request(String owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static final class Lease {
+        final String node;
+        final long expiresAt;
+
+        Lease(String node, long expiresAt) {
+            this.node = node;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final String nodeId;
+    private final long leaseMs;
+    private final ClusterBridge bridge;
+    private final TimingWheel timers;
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+
+    // leases of the logins this node owns
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+    // logins held by sessions on this node, with the number of sessions holding each
+    private final ConcurrentHashMap<String, Integer> held = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Request> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong(0);
+
+    public SessionRegistry(String nodeId, Collection<String> peers, long leaseMs, ClusterBridge bridge, TimingWheel timers) {
+        this.nodeId = nodeId;
+        this.leaseMs = leaseMs;
+        this.bridge = bridge;
+        this.timers = timers;
+        addToRing(nodeId);
+        for (String peer : peers) {
+            addToRing(peer);
+        }
+    }
+
+    private void addToRing(String node) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(node + '#' + i), node);
+        }
+    }
+
+    public void start() {
+        timers.schedule(this::renew, leaseMs / RENEWALS_PER_LEASE);
+    }
+
+    /**
+     * @return the live node that owns {@code login}: the first one clockwise from its hash
+     */
+    String owner(String login) {
+        SortedMap<Integer, String> tail = ring.tailMap(hash(login));
+        for (String node : tail.values()) {
+            if (isLive(node)) return node;
+        }
+        for (String node : ring.values()) {
+            if (isLive(node)) return node;
+        }
+        return nodeId;
+    }
+
+    private boolean isLive(String node) {
+        return node.equals(nodeId) || bridge.isConnected(node);
+    }
+
+    /**
+     * Takes the login for a session on this node
+     *
+     * @return completes with false if another node holds it, or its owner did not answer in time
+     */
+    public CompletableFuture<Boolean> acquire(String login) {
+        boolean[] shared = {false};
+        held.computeIfPresent(login, (k, sessions) -> {
+            shared[0] = true;
+            return sessions + 1;
+        });
+        if (shared[0]) return CompletableFuture.completedFuture(true);
+
+        String owner = owner(login);
+        CompletableFuture<Boolean> reply;
+        if (owner.equals(nodeId)) {
+            reply = CompletableFuture.completedFuture(grant(login, nodeId));
+        } else {
+            long id = requestIds.incrementAndGet();
+            Request request = new Request(owner);
+            reply = request.reply;
+            pending.put(id, request);
+            if (!bridge.sendTo(owner, "LEASE\nlogin:" + login + "\nrequest-id:" + id + "\n\n")) {
+                pending.remove(id);
+                reply.complete(false);
+            } else {
+                timers.schedule(() -> {
+                    Request late = pending.remove(id);
+                    if (late != null) late.reply.complete(false);
+                }, REQUEST_TIMEOUT_MS);
+            }
+        }
+        return reply.thenApply(granted -> {
+            if (granted) held.merge(login, 1, Integer::sum);
+            return granted;
+        });
+    }
+
+    /**
+     * A session on this node that held the login ended
+     */
+    public void release(String login) {
+        boolean[] last = {false};
+        held.computeIfPresent(login, (k, sessions) -> {
+            if (sessions > 1) return sessions - 1;
+            last[0] = true;
+            return null;
+        });
+        if (!last[0]) return;
+
+        String owner = owner(login);
+        if (owner.equals(nodeId)) {
+            revoke(login, nodeId);
+        } else {
+            bridge.sendTo(owner, "RELEASE\nlogin:" + login + "\n\n");
+        }
+    }
+
+    /**
+     * Handles a registry frame from a peer
+     *
+     * @param peer the node id the frame's link authenticated as
+     */
+    void handle(String peer, String command, Map<String, String> headers, String body) {
+        String login = headers.get("login");
+        switch (command) {
+            case "LEASE":
+                if (login == null) return;
+                bridge.sendTo(peer, "LEASE-REPLY\nrequest-id:" + headers.get("request-id")
+                        + "\ngranted:" + grant(login, peer) + "\n\n");
+                break;
+            case "LEASE-REPLY":
+                try {
+                    long id = Long.parseLong(headers.get("request-id"));
+                    // only the node that was asked may answer
+                    Request request = pending.get(id);
+                    if (request != null && request.owner.equals(peer) && pending.remove(id, request)) {
+                        request.reply.complete("true".equals(headers.get("granted")));
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+                break;
+            case "RENEW":
+                for (String line : body.split("\n")) {
+                    // a renewal may also rebuild the table of a node that took over from a dead owner
+                    if (!line.isEmpty()) grant(line, peer);
+                }
+                break;
+            case "RELEASE":
+                if (login != null) revoke(login, peer);
+                break;
+            default:
+        }
+    }
+
+
+    /**
+     * The peer started afresh, so none of the leases it held is in use any more
+     */
+    void peerRestarted(String peer) {
+        leases.values().removeIf(lease -> lease.node.equals(peer));
+    }
+
+    /**
+     * @return true if {@code node} now holds the login: it was free, expired, or already held by that node
+     */
+    private boolean grant(String login, String node) {
+        long now = System.currentTimeMillis();
+        boolean[] granted = {false};
+        leases.compute(login, (k, lease) -> {
+            if (lease == null || lease.expiresAt < now || lease.node.equals(node)) {
+                granted[0] = true;
+                return new Lease(node, now + leaseMs);
+            }
+            return lease;
+        });
+        return granted[0];
+    }
+
+    private void revoke(String login, String node) {
+        leases.computeIfPresent(login, (k, lease) -> lease.node.equals(node) ? null : lease);
+    }
+
+    /**
+     * Renews this node's logins with their owners, one frame per owner, and drops expired leases
+     */
+    private void renew() {
+        try {
+            Map<String, StringBuilder> byOwner = new HashMap<>();
+            for (String login : held.keySet()) {
+                String owner = owner(login);
+                if (owner.equals(nodeId)) {
+                    grant(login, nodeId);
+                } else {
+                    byOwner.computeIfAbsent(owner, k -> new StringBuilder()).append(login).append('\n');
+                }
+            }
+            for (Map.Entry<String, StringBuilder> e : byOwner.entrySet()) {
+                bridge.sendTo(e.getKey(), "RENEW\n\n" + e.getValue());
+            }
+
+            long now = System.currentTimeMillis();
+            leases.values().removeIf(lease -> lease.expiresAt < now);
+        } finally {
+            timers.schedule(this::renew, leaseMs / RENEWALS_PER_LEASE);
+        }
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, then a final mix so that similar names spread over the whole ring
+     */
+    private static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
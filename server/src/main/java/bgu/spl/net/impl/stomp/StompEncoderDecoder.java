@@ -5,36 +5,177 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+/**
+ * Text STOMP framing. A frame ends at its NUL, unless it carries a content-length header: then the body
+ * is read by count and may contain NULs itself. Frames are limited to a maximum size; a longer one is
+ * skipped and reported as {@link #FRAME_TOO_LARGE}.
+ */
 public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
 
-    private byte[] bytes = new byte[1 << 10]; // 1KB
+    /**
+     * Returned in place of a frame over the size limit. Compare by identity.
+     */
+    public static final String FRAME_TOO_LARGE = new String("(frame too large)");
+
+    /**
+     * Returned in place of a frame that cannot be decoded. Compare by identity.
+     */
+    public static final String MALFORMED_FRAME = new String("(malformed frame)");
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20; // 1MB
+
+    private static final int BASELINE_SIZE = 1 << 10; // 1KB
+    // a buffer grown past this is dropped after its frame, so one big frame does not stay pinned
+    private static final int RETAINED_SIZE = 1 << 13; // 8KB
+
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxFrameSize;
+
+    private byte[] bytes = new byte[BASELINE_SIZE];
     private int len = 0;
 
+    private int lineStart = 0;
+    private boolean inBody = false;
+    private int contentLength = -1;
+    // body bytes still to read by count; -1 when the body ends at the NUL
+    private int bodyRemaining = -1;
+    // what to report once the skipped frame ends, null while not skipping
+    private String discarded = null;
+
+    public StompEncoderDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public StompEncoderDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
     @Override
     public String decodeNextByte(byte nextByte) {
+        // EOLs between frames are heart-beats
+        if (len == 0 && discarded == null && (nextByte == '\n' || nextByte == '\r')) {
+            return null;
+        }
+
+        if (bodyRemaining > 0) {
+            bodyRemaining--;
+            if (discarded == null) bytes[len++] = nextByte;
+            return null;
+        }
+
         if (nextByte == '\u0000') {
-            return popString();
+            String result = discarded != null ? discarded : new String(bytes, 0, len, StandardCharsets.UTF_8);
+            reset();
+            return result;
         }
 
+        if (discarded != null) return null;
+        if (len >= maxFrameSize) {
+            discard(FRAME_TOO_LARGE);
+            return null;
+        }
         pushByte(nextByte);
+        if (nextByte == '\n' && !inBody) {
+            endOfLine();
+        }
         return null;
     }
 
     @Override
     public byte[] encode(String message) {
-        return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
+        // ASCII frames, the usual case, are copied straight into the NUL-terminated result
+        int n = message.length();
+        byte[] out = new byte[n + 1];
+        for (int i = 0; i < n; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x80) {
+                return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
+            }
+            out[i] = (byte) c;
+        }
+        return out;
     }
 
     private void pushByte(byte nextByte) {
         if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+            bytes = Arrays.copyOf(bytes, Math.min(len * 2, maxFrameSize));
         }
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    /**
+     * The command line or a header line just ended
+     */
+    private void endOfLine() {
+        int end = len - 1;
+        if (end > lineStart && bytes[end - 1] == '\r') end--;
+
+        if (end == lineStart) {
+            inBody = true;
+            if (contentLength >= 0) {
+                if ((long) len + contentLength > maxFrameSize) {
+                    int skip = contentLength;
+                    discard(FRAME_TOO_LARGE);
+                    bodyRemaining = skip;
+                } else {
+                    if (bytes.length < len + contentLength) {
+                        bytes = Arrays.copyOf(bytes, len + contentLength);
+                    }
+                    bodyRemaining = contentLength;
+                }
+            }
+        } else if (contentLength < 0 && lineStart > 0 && startsWith(lineStart, end, CONTENT_LENGTH)) {
+            // the first occurrence of a header wins
+            contentLength = parseLength(lineStart + CONTENT_LENGTH.length, end);
+            if (contentLength < 0) {
+                discard(MALFORMED_FRAME);
+                return;
+            }
+        }
+        lineStart = len;
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[from + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the decimal in bytes[from, to), -1 if there is none
+     */
+    private int parseLength(int from, int to) {
+        while (from < to && bytes[from] == ' ') from++;
+        while (to > from && bytes[to - 1] == ' ') to--;
+        if (from == to || to - from > 10) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') return -1;
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    /**
+     * Drops what was read of the frame and skips the rest of it up to its NUL
+     */
+    private void discard(String report) {
+        reset();
+        discarded = report;
+    }
+
+    private void reset() {
         len = 0;
-        return result;
+        lineStart = 0;
+        inBody = false;
+        contentLength = -1;
+        bodyRemaining = -1;
+        discarded = null;
+        if (bytes.length > RETAINED_SIZE) {
+            bytes = new byte[BASELINE_SIZE];
+        }
     }
 }
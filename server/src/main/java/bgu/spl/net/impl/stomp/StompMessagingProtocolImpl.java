@@ -1,14 +1,26 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.User;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.IntHashMap;
 
+import bgu.spl.net.srv.TimingWheel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
@@ -20,14 +32,77 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     private static final AtomicInteger messageIdCounter = new AtomicInteger(0);
 
     private static final ConcurrentHashMap<String, User> activeByName = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<Integer, User> activeByConn = new ConcurrentHashMap<>();
+    private static final IntHashMap<User> activeByConn = new IntHashMap<>();
 
     private static final ConcurrentHashMap<String, Boolean> fileUploadOnce = new ConcurrentHashMap<>();
 
+    // sessions of dropped connections, waiting to be resumed
+    private static final ParkedSessions parked = new ParkedSessions();
+
     private final Database db = Database.getInstance();
 
+    // fan-out chunks of this publisher still running on the worker pool
+    private final AtomicInteger fanOutsInFlight = new AtomicInteger(0);
+
+    // reused for every frame of this connection
+    private final FrameParser parser = new FrameParser();
+
     private User currentUser = null;
-    private String lastFrame = "";
+    // quoted back in ERROR frames; null when the frame could not be decoded
+    private FrameParser lastFrame = null;
+    private boolean deflate = false;
+    // handed to the client in CONNECTED; null when the server cannot hold sessions
+    private String resumeToken = null;
+    // this session holds its login in the cluster's session registry
+    private boolean loginLeased = false;
+
+    // a transaction may not buffer more SENDs than this
+    private static final int MAX_TRANSACTION_FRAMES = 10000;
+
+    /**
+     * A SEND held back until its transaction commits
+     */
+    private static final class PendingSend {
+        final String topic;
+        final Map<String, String> headers;
+        final String body;
+
+        PendingSend(String topic, Map<String, String> headers, String body) {
+            this.topic = topic;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A committed message bound for one subscription
+     */
+    private static final class Delivery {
+        final Subscription subscription;
+        final int messageId;
+        final String frame;
+
+        Delivery(Subscription subscription, int messageId, String frame) {
+            this.subscription = subscription;
+            this.messageId = messageId;
+            this.frame = frame;
+        }
+    }
+
+    // open transactions of this connection; whatever is still open when it ends is aborted
+    private final Map<String, List<PendingSend>> transactions = new HashMap<>();
+
+    // while CONNECT waits for the database, later frames of this connection wait here
+    private boolean connecting = false;
+    private final Queue<FrameParser> pendingFrames = new ArrayDeque<>(2);
+
+    @Override
+    public void attach(MessageEncoderDecoder<String> decoder) {
+        // binary frames then arrive already parsed, and are never written out as text
+        if (decoder instanceof NegotiatingEncoderDecoder) {
+            ((NegotiatingEncoderDecoder) decoder).parseInto(parser);
+        }
+    }
 
     @Override
     public void start(int connectionId, Connections<String> connections) {
@@ -38,14 +113,38 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     @Override
     public String process(String message) {
         if (message == null) return null;
-        lastFrame = message;
-
-        String[] lines = message.split("\n", -1);
-        if (lines.length == 0) return null;
+        if (message != FrameParser.PARSED) {
+            // the decoders report frames they could not deliver with sentinels, which stand in for the command
+            if (message == StompEncoderDecoder.FRAME_TOO_LARGE || message == StompEncoderDecoder.MALFORMED_FRAME) {
+                parser.start(message);
+            } else {
+                parser.parse(message);
+            }
+        }
+        if (connecting) {
+            // the parser is refilled by the next frame
+            pendingFrames.add(parser.copy());
+            return null;
+        }
+        dispatch(parser);
+        return null;
+    }
 
-        String command = lines[0].trim();
-        Map<String, String> headers = new HashMap<>();
-        String body = parseHeadersAndBody(lines, headers);
+    private void dispatch(FrameParser frame) {
+        String command = frame.command();
+        if (command == StompEncoderDecoder.FRAME_TOO_LARGE) {
+            lastFrame = null;
+            sendError("Frame too large", "The frame exceeds the server's size limit", null);
+            return;
+        }
+        if (command == StompEncoderDecoder.MALFORMED_FRAME) {
+            lastFrame = null;
+            sendError("Malformed Frame", "The frame could not be decoded", null);
+            return;
+        }
+        lastFrame = frame;
+        Map<String, String> headers = frame.headers();
+        String body = frame.body();
 
         switch (command) {
             case "CONNECT":
@@ -60,49 +159,42 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             case "SEND":
                 handleSend(headers, body);
                 break;
+            case "ACK":
+                handleAck(headers, false);
+                break;
+            case "NACK":
+                handleAck(headers, true);
+                break;
+            case "BEGIN":
+                handleBegin(headers);
+                break;
+            case "COMMIT":
+                handleCommit(headers);
+                break;
+            case "ABORT":
+                handleAbort(headers);
+                break;
             case "DISCONNECT":
                 handleDisconnect(headers);
                 break;
             default:
                 sendError("Malformed Frame", "Unknown command: " + command, headers.get("receipt"));
         }
-
-        return null;
-    }
-
-    private String parseHeadersAndBody(String[] lines, Map<String, String> headers) {
-        boolean inBody = false;
-        StringBuilder body = new StringBuilder();
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i];
-            if (!inBody) {
-                if (line.trim().isEmpty()) {
-                    inBody = true;
-                    continue;
-                }
-                int idx = line.indexOf(':');
-                if (idx < 0) continue;
-                String key = line.substring(0, idx).trim();
-                String val = line.substring(idx + 1).trim();
-                headers.put(key, val);
-            } else {
-                body.append(line);
-                if (i < lines.length - 1) body.append("\n");
-            }
-        }
-        return body.toString();
     }
 
     private boolean isLoggedIn() {
         return currentUser != null && currentUser.isLoggedIn();
     }
 
-    private void handleConnect(Map<String, String> headers) {
+    private void handleConnect(Map<String, String> frameHeaders) {
+        // the parser is refilled by every frame, and the login may wait for the database
+        Map<String, String> headers = new HashMap<>(frameHeaders);
+        lastFrame = lastFrame.copy();
         String receipt = headers.get("receipt");
         String login = headers.get("login");
         String passcode = headers.get("passcode");
 
-        if (login == null || passcode == null) {
+        if (login == null) {
             sendError("Missing login/passcode", "Missing login/passcode", receipt);
             return;
         }
@@ -112,37 +204,210 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        User already = activeByName.get(login);
-        if (already != null && already.isLoggedIn()) {
+        if (connections instanceof ConnectionsImpl && ((ConnectionsImpl<String>) connections).isOverloaded()) {
+            sendError("Server busy", "Server is overloaded, try again later", receipt);
+            return;
+        }
+
+        // an unknown or expired token falls back to a regular login
+        String token = headers.get("resume-token");
+        if (token != null && resumeSession(token, login, headers)) {
+            return;
+        }
+
+        if (passcode == null) {
+            sendError("Missing login/passcode", "Missing login/passcode", receipt);
+            return;
+        }
+
+        if (!(connections instanceof ConnectionsImpl)) {
+            sendError("Connections implementation mismatch", "Connections implementation mismatch", receipt);
+            return;
+        }
+
+        // reserve the name while the database is consulted; the entry counts as logged in from here on
+        User candidate = new User(connectionId, login, passcode);
+        if (activeByName.putIfAbsent(login, candidate) != null) {
             sendError("User already logged in", "User already logged in", receipt);
             return;
         }
+        currentUser = candidate;
+        connecting = true;
 
-        String storedPassword = db.getPassword(login);
-        if (storedPassword == null) {
-            boolean ok = db.registerUser(login, passcode);
-            if (!ok) {
-                sendError("SQL registration failed", "SQL registration failed", receipt);
-                return;
-            }
-        } else {
-            if (!storedPassword.equals(passcode)) {
-                sendError("Wrong password", "Wrong password", receipt);
-                return;
+        // then the cluster's, which is the local reservation when there is no cluster
+        ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
+        connImpl.acquireLogin(login).thenAccept(granted -> {
+            boolean delivered = resume(() -> {
+                if (shouldTerminate) {
+                    if (granted) connImpl.releaseLogin(login);
+                    return;
+                }
+                if (!granted) {
+                    failConnect("User already logged in", receipt);
+                    return;
+                }
+                loginLeased = true;
+                checkPassword(login, passcode, headers);
+            });
+            // the connection closed before the answer came, so nobody else will give the login back
+            if (!delivered && granted) connImpl.releaseLogin(login);
+        });
+    }
+
+    private void checkPassword(String login, String passcode, Map<String, String> headers) {
+        String receipt = headers.get("receipt");
+        db.getPassword(login).thenAccept(storedPassword -> resume(() -> {
+            if (shouldTerminate) return;
+            if (storedPassword == null) {
+                db.registerUser(login, passcode).thenAccept(ok -> resume(() -> {
+                    if (shouldTerminate) return;
+                    if (!ok) {
+                        failConnect("SQL registration failed", receipt);
+                    } else {
+                        completeConnect(headers);
+                    }
+                }));
+            } else if (!storedPassword.equals(passcode)) {
+                failConnect("Wrong password", receipt);
+            } else {
+                completeConnect(headers);
             }
+        }));
+    }
+
+    /**
+     * Runs a database continuation on this connection's actor, as if it were the next frame
+     *
+     * @return false if the connection is gone and the task was dropped
+     */
+    private boolean resume(Runnable task) {
+        if (connections instanceof ConnectionsImpl) {
+            return ((ConnectionsImpl<String>) connections).execute(connectionId, task);
         }
+        task.run();
+        return true;
+    }
+
+    private void failConnect(String reason, String receipt) {
+        connecting = false;
+        pendingFrames.clear();
+        sendError(reason, reason, receipt);
+    }
+
+    private void completeConnect(Map<String, String> headers) {
+        String login = currentUser.name;
 
-        currentUser = new User(connectionId, login, passcode);
         currentUser.login();
-        activeByName.put(login, currentUser);
         activeByConn.put(connectionId, currentUser);
 
+        // a session still parked from an earlier connection ends before the new one starts
+        if (parked.evict(login) != null) {
+            db.logLogout(login);
+            ((ConnectionsImpl<String>) connections).releaseLogin(login);
+        }
         db.logLogin(login);
 
-        connections.send(connectionId, createConnectedFrame());
+        establish(headers, false);
+
+        connecting = false;
+        while (!pendingFrames.isEmpty() && !connecting && !shouldTerminate) {
+            dispatch(pendingFrames.poll());
+        }
+    }
+
+    /**
+     * Takes over a parked session: same user, same subscriptions, no database round trip
+     *
+     * @return false if the token does not name a parked session of this login
+     */
+    private boolean resumeSession(String token, String login, Map<String, String> headers) {
+        if (!(connections instanceof ConnectionsImpl)) return false;
+        ParkedSessions.Parked session = parked.claim(token, login);
+        if (session == null) return false;
+
+        ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
+        if (activeByName.putIfAbsent(login, session.user) != null) {
+            // someone logged in as this user meanwhile; the parked session ends here
+            db.logLogout(login);
+            connImpl.releaseLogin(login);
+            return false;
+        }
+        // the parked session's hold on the login carries over
+        loginLeased = true;
+        currentUser = session.user;
+        currentUser.setConnectionId(connectionId);
+        activeByConn.put(connectionId, currentUser);
+
+        deflate = acceptsEncoding(headers.get("accept-encoding"), MessageBody.DEFLATE);
+        for (Subscription sub : session.subscriptions) {
+            connImpl.resubscribe(sub, connectionId, deflate);
+        }
+
+        establish(headers, true);
+        return true;
+    }
+
+    /**
+     * Negotiates the connection options and answers CONNECTED
+     */
+    private void establish(Map<String, String> headers, boolean resumed) {
+        String receipt = headers.get("receipt");
+
+        long[] heartbeat = negotiateHeartbeat(headers.get("heart-beat"));
+        if (connections instanceof ConnectionsImpl) {
+            ((ConnectionsImpl<String>) connections).setHeartbeat(connectionId, heartbeat[0], heartbeat[1]);
+        }
+
+        deflate = acceptsEncoding(headers.get("accept-encoding"), MessageBody.DEFLATE);
+
+        if (connections instanceof ConnectionsImpl) {
+            ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
+            connImpl.limitUser(connectionId, currentUser.name);
+            if (connImpl.getTimers() != null) {
+                resumeToken = ParkedSessions.newToken();
+            }
+        }
+
+        sendControl(createConnectedFrame(resumed));
         if (receipt != null) {
-            connections.send(connectionId, createReceiptFrame(receipt));
+            sendControl(createReceiptFrame(receipt));
+        }
+    }
+
+    /**
+     * @return {server-to-client, client-to-server} intervals in ms, 0 meaning no heart-beats that way
+     */
+    private long[] negotiateHeartbeat(String header) {
+        long clientSend = 0;
+        long clientReceive = 0;
+        if (header != null) {
+            String[] parts = header.split(",");
+            try {
+                if (parts.length == 2) {
+                    clientSend = Long.parseLong(parts[0].trim());
+                    clientReceive = Long.parseLong(parts[1].trim());
+                }
+            } catch (NumberFormatException ignored) {
+            }
         }
+
+        ServerConfig config = config();
+        return new long[]{interval(config.heartbeatSendMs, clientReceive), interval(config.heartbeatReceiveMs, clientSend)};
+    }
+
+    /**
+     * @return the slower of the two sides' intervals for one direction, 0 if either side turned it off
+     */
+    private static long interval(long server, long client) {
+        return server > 0 && client > 0 ? Math.max(server, client) : 0;
+    }
+
+    private static boolean acceptsEncoding(String header, String encoding) {
+        if (header == null) return false;
+        for (String token : header.split(",")) {
+            if (token.trim().equalsIgnoreCase(encoding)) return true;
+        }
+        return false;
     }
 
     private void handleSubscribe(Map<String, String> headers) {
@@ -159,17 +424,77 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
+        if (!TopicTrie.isValidPattern(topic)) {
+            sendError("Invalid destination", "'#' may only be the last level of a destination", receipt);
+            return;
+        }
+
+        MessageSelector selector = null;
+        String selectorHeader = headers.get("selector");
+        if (selectorHeader != null && !selectorHeader.isEmpty()) {
+            try {
+                selector = MessageSelector.compile(selectorHeader);
+            } catch (IllegalArgumentException ex) {
+                sendError("Invalid selector", ex.getMessage(), receipt);
+                return;
+            }
+        }
+
+        String ack = headers.get("ack");
+        if (ack == null) {
+            ack = Subscription.ACK_AUTO;
+        } else if (!ack.equals(Subscription.ACK_AUTO) && !ack.equals(Subscription.ACK_CLIENT)
+                && !ack.equals(Subscription.ACK_CLIENT_INDIVIDUAL)) {
+            sendError("Invalid ack mode", "ack must be auto, client or client-individual", receipt);
+            return;
+        }
+
+        int prefetch = 0;
+        String prefetchHeader = headers.get("prefetch-count");
+        if (prefetchHeader != null) {
+            try {
+                prefetch = Integer.parseInt(prefetchHeader.trim());
+            } catch (NumberFormatException ex) {
+                prefetch = -1;
+            }
+            if (prefetch <= 0) {
+                sendError("Invalid prefetch-count", "prefetch-count must be a positive number", receipt);
+                return;
+            }
+        }
+
+        String group = headers.get("consumer-group");
+        if (group != null && group.isEmpty()) {
+            sendError("Invalid consumer-group", "consumer-group must not be empty", receipt);
+            return;
+        }
+        String balance = headers.get("consumer-group-balance");
+        if (balance != null && !ConsumerGroup.isBalance(balance)) {
+            sendError("Invalid consumer-group-balance", "consumer-group-balance must be round-robin or least-outstanding", receipt);
+            return;
+        }
+
         if (!(connections instanceof ConnectionsImpl)) {
             sendError("Connections implementation mismatch", "Connections implementation mismatch", receipt);
             return;
         }
 
         ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
-        connImpl.subscribe(topic, connectionId);
+        // kept for the whole session, so every subscriber of a destination shares one copy of its name
+        topic = topic.intern();
+        connImpl.subscribe(topic, connectionId, subId, selector, deflate, ack, prefetch, group, balance);
         currentUser.addSubscription(topic, subId);
 
         if (receipt != null) {
-            connections.send(connectionId, createReceiptFrame(receipt));
+            sendControl(createReceiptFrame(receipt));
+        }
+
+        // a late joiner can ask for the game so far instead of replaying every report
+        if ("true".equals(headers.get("snapshot")) && !TopicTrie.isPattern(topic)) {
+            String state = connImpl.snapshot(topic);
+            if (state != null) {
+                connections.send(connectionId, createSnapshotFrame(topic, subId, state));
+            }
         }
     }
 
@@ -200,10 +525,10 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
 
         ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
-        connImpl.unsubscribe(topic, connectionId);
+        connImpl.unsubscribe(connectionId, subId);
 
         if (receipt != null) {
-            connections.send(connectionId, createReceiptFrame(receipt));
+            sendControl(createReceiptFrame(receipt));
         }
     }
 
@@ -220,11 +545,69 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        if (currentUser.getSubscriptionId(topic) == null) {
+        if (TopicTrie.isPattern(topic)) {
+            sendError("Invalid destination", "Cannot send to a wildcard destination", receipt);
+            return;
+        }
+
+        if (!isSubscribedTo(topic)) {
             sendError("Not subscribed to topic", "Not subscribed to topic", receipt);
             return;
         }
 
+        if (!(connections instanceof ConnectionsImpl)) {
+            sendError("Connections implementation mismatch", "Connections implementation mismatch", receipt);
+            return;
+        }
+
+        String transaction = headers.get("transaction");
+        if (transaction != null) {
+            List<PendingSend> batch = transactions.get(transaction);
+            if (batch == null) {
+                sendError("Unknown transaction", "No open transaction '" + transaction + "'", receipt);
+                return;
+            }
+            if (batch.size() >= MAX_TRANSACTION_FRAMES) {
+                sendError("Transaction too large", "A transaction holds at most " + MAX_TRANSACTION_FRAMES + " frames", receipt);
+                return;
+            }
+            // acknowledged as buffered; delivery is covered by the COMMIT's receipt
+            batch.add(new PendingSend(topic, new HashMap<>(headers), body));
+            if (receipt != null) {
+                sendControl(createReceiptFrame(receipt));
+            }
+            return;
+        }
+
+        ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
+        recordPublish(connImpl, topic, headers, body);
+
+        deliver(connImpl, topic, new MessageBody(headers, body), true, fanOutsInFlight);
+        connImpl.publishToCluster(topic, headers, body);
+
+        if (receipt != null) {
+            sendControl(createReceiptFrame(receipt));
+        }
+    }
+
+    /**
+     * Fans a publish out to this node's subscribers of {@code topic}
+     *
+     * @param withGroups false for a publish that came from another node, see {@link ConnectionsImpl#recipients}
+     * @param inFlight the publisher's count of undelivered fan-out partitions, see {@link ConnectionsImpl#fanOut}
+     */
+    static void deliver(ConnectionsImpl<String> connImpl, String topic, MessageBody payload, boolean withGroups,
+                        AtomicInteger inFlight) {
+        connImpl.fanOut(connImpl.recipients(topic, payload, withGroups), sub -> {
+            int msgId = messageIdCounter.incrementAndGet();
+            connImpl.deliver(sub, msgId, createMessageFrame(topic, sub, msgId, payload));
+        }, inFlight);
+    }
+
+    /**
+     * Bookkeeping of a publish that is about to be delivered: file upload log and channel game state
+     */
+    private void recordPublish(ConnectionsImpl<String> connImpl, String topic, Map<String, String> headers, String body) {
         String filename = headers.get("file");
         if (filename != null && !filename.isEmpty()) {
             String key = currentUser.name + "|" + filename + "|" + topic;
@@ -233,47 +616,289 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             }
         }
 
-        if (!(connections instanceof ConnectionsImpl)) {
-            sendError("Connections implementation mismatch", "Connections implementation mismatch", receipt);
+        GameState.Report report = GameState.parse(body);
+        if (report != null) {
+            connImpl.recordReport(topic, report);
+        }
+    }
+
+    private void handleBegin(Map<String, String> headers) {
+        String receipt = headers.get("receipt");
+        if (!isLoggedIn()) {
+            sendError("Not logged in", "Not logged in", receipt);
             return;
         }
 
-        ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
-        ConcurrentLinkedQueue<Integer> subscribers = connImpl.getSubscribers(topic);
+        String transaction = headers.get("transaction");
+        if (transaction == null) {
+            sendError("Missing transaction", "Missing transaction", receipt);
+            return;
+        }
+        if (transactions.containsKey(transaction)) {
+            sendError("Transaction already open", "Transaction '" + transaction + "' is already open", receipt);
+            return;
+        }
 
-        if (subscribers != null) {
-            for (Integer targetConnId : subscribers) {
-                User targetUser = activeByConn.get(targetConnId);
-                if (targetUser == null) continue;
+        transactions.put(transaction, new ArrayList<>());
+        if (receipt != null) {
+            sendControl(createReceiptFrame(receipt));
+        }
+    }
 
-                String targetSubId = targetUser.getSubscriptionId(topic);
-                if (targetSubId == null) continue;
+    /**
+     * Delivers the transaction's SENDs in order. Each subscriber connection gets its frames of the batch in
+     * commit order, consecutive auto-ack ones in one write, and the committer a single receipt.
+     */
+    private void handleCommit(Map<String, String> headers) {
+        String receipt = headers.get("receipt");
+        List<PendingSend> batch = closeTransaction(headers);
+        if (batch == null) return;
 
-                String msgFrame = createMessageFrame(topic, targetSubId, body);
-                connections.send(targetConnId, msgFrame);
+        ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
+        // per subscriber connection, in commit order; auto-ack deliveries have no window to go through
+        Map<Integer, List<Delivery>> deliveries = new HashMap<>();
+        Map<Integer, Subscription> targets = new LinkedHashMap<>();
+        for (PendingSend send : batch) {
+            recordPublish(connImpl, send.topic, send.headers, send.body);
+            connImpl.publishToCluster(send.topic, send.headers, send.body);
+            MessageBody payload = new MessageBody(send.headers, send.body);
+            for (Subscription sub : connImpl.recipients(send.topic, payload)) {
+                int msgId = messageIdCounter.incrementAndGet();
+                String frame = createMessageFrame(send.topic, sub, msgId, payload);
+                deliveries.computeIfAbsent(sub.connectionId, k -> new ArrayList<>()).add(new Delivery(sub, msgId, frame));
+                targets.putIfAbsent(sub.connectionId, sub);
             }
         }
 
+        // one entry per subscriber connection, so the partitioned fan-out keeps each one's order
+        connImpl.fanOut(new ArrayList<>(targets.values()), sub -> {
+            // runs of auto-ack frames go out as one batch, flushed before each client-ack delivery so that
+            // the connection sees the messages in the order they were sent
+            List<String> run = new ArrayList<>();
+            for (Delivery d : deliveries.get(sub.connectionId)) {
+                if (d.subscription.window == null) {
+                    run.add(d.frame);
+                    continue;
+                }
+                if (!run.isEmpty()) {
+                    connImpl.sendAll(sub.connectionId, run);
+                    run = new ArrayList<>();
+                }
+                // client-ack subscriptions take the batch as far as their credit goes
+                connImpl.deliver(d.subscription, d.messageId, d.frame);
+            }
+            if (!run.isEmpty()) {
+                connImpl.sendAll(sub.connectionId, run);
+            }
+        }, fanOutsInFlight);
+
+        if (receipt != null) {
+            sendControl(createReceiptFrame(receipt));
+        }
+    }
+
+    /**
+     * ACK or NACK of a message delivered on a client-ack subscription; either frees its credit.
+     * There is no redelivery: a NACKed message is dropped.
+     */
+    private void handleAck(Map<String, String> headers, boolean nack) {
+        String receipt = headers.get("receipt");
+        if (!isLoggedIn()) {
+            sendError("Not logged in", "Not logged in", receipt);
+            return;
+        }
+
+        String id = headers.get("id");
+        if (id == null) {
+            sendError("Missing id", "Missing id", receipt);
+            return;
+        }
+
+        if (!(connections instanceof ConnectionsImpl)) {
+            sendError("Connections implementation mismatch", "Connections implementation mismatch", receipt);
+            return;
+        }
+
+        int msgId;
+        try {
+            msgId = Integer.parseInt(id.trim());
+        } catch (NumberFormatException ex) {
+            msgId = -1;
+        }
+        if (msgId < 0 || !((ConnectionsImpl<String>) connections).settle(connectionId, msgId)) {
+            sendError(nack ? "Unknown NACK id" : "Unknown ACK id", "No outstanding message '" + id + "'", receipt);
+            return;
+        }
+
         if (receipt != null) {
-            connections.send(connectionId, createReceiptFrame(receipt));
+            sendControl(createReceiptFrame(receipt));
+        }
+    }
+
+    private void handleAbort(Map<String, String> headers) {
+        String receipt = headers.get("receipt");
+        if (closeTransaction(headers) != null && receipt != null) {
+            sendControl(createReceiptFrame(receipt));
+        }
+    }
+
+    /**
+     * @return the SENDs of the transaction named in the frame, null after reporting an error
+     */
+    private List<PendingSend> closeTransaction(Map<String, String> headers) {
+        String receipt = headers.get("receipt");
+        if (!isLoggedIn()) {
+            sendError("Not logged in", "Not logged in", receipt);
+            return null;
+        }
+
+        String transaction = headers.get("transaction");
+        if (transaction == null) {
+            sendError("Missing transaction", "Missing transaction", receipt);
+            return null;
+        }
+        List<PendingSend> batch = transactions.remove(transaction);
+        if (batch == null) {
+            sendError("Unknown transaction", "No open transaction '" + transaction + "'", receipt);
         }
+        return batch;
+    }
+
+    private boolean isSubscribedTo(String topic) {
+        if (currentUser.getSubscriptionId(topic) != null) return true;
+        if (!(connections instanceof ConnectionsImpl)) return false;
+
+        for (Subscription sub : ((ConnectionsImpl<String>) connections).getSubscriptions(connectionId)) {
+            if (TopicTrie.matches(sub.destination, topic)) return true;
+        }
+        return false;
     }
 
     private void handleDisconnect(Map<String, String> headers) {
         String receipt = headers.get("receipt");
 
         if (receipt != null) {
-            connections.send(connectionId, createReceiptFrame(receipt));
+            sendControl(createReceiptFrame(receipt));
         }
 
         cleanupAndDisconnect(false);
     }
 
+    /**
+     * Replies to this client ahead of the messages already queued for it
+     */
+    private void sendControl(String frame) {
+        if (connections instanceof ConnectionsImpl) {
+            ((ConnectionsImpl<String>) connections).sendControl(connectionId, frame);
+        } else {
+            connections.send(connectionId, frame);
+        }
+    }
+
     private void sendError(String shortMsg, String details, String receipt) {
-        connections.send(connectionId, createErrorFrame(shortMsg, details, receipt));
+        sendControl(createErrorFrame(shortMsg, details, receipt));
         cleanupAndDisconnect(true);
     }
 
+    @Override
+    public void onClose() {
+        if (shouldTerminate) return;
+        if (resumeToken != null && isLoggedIn()) {
+            park();
+        } else {
+            cleanupAndDisconnect(false);
+        }
+    }
+
+    /**
+     * The connection dropped without DISCONNECT: keep the session for a resuming CONNECT.
+     * The logout is recorded only if the grace period runs out.
+     */
+    private void park() {
+        ConnectionsImpl<String> connImpl = (ConnectionsImpl<String>) connections;
+        TimingWheel timers = connImpl.getTimers();
+        List<Subscription> subs = new ArrayList<>(connImpl.getSubscriptions(connectionId));
+        connImpl.unsubscribeAll(connectionId);
+
+        activeByConn.remove(connectionId, currentUser);
+        activeByName.remove(currentUser.name, currentUser);
+        parked.park(resumeToken, currentUser, subs, timers, connImpl.getConfig().resumeGraceMs,
+                session -> endParked(connImpl, session));
+        // the hold on the login stays with the parked session
+        loginLeased = false;
+
+        shouldTerminate = true;
+        connections.disconnect(connectionId);
+    }
+
+    /**
+     * Nobody resumed the session in time
+     */
+    private static void endParked(ConnectionsImpl<String> connImpl, ParkedSessions.Parked session) {
+        session.user.clearSubscriptions();
+        session.user.logout();
+        Database.getInstance().logLogout(session.user.name);
+        connImpl.releaseLogin(session.user.name);
+    }
+
+    /**
+     * The server drains for a restart. A session that can be resumed is parked, to be saved for the next
+     * process; the client is told to come back after a delay, with the token if it has one.
+     */
+    @Override
+    public void onDrain() {
+        if (shouldTerminate) return;
+        boolean resumable = resumeToken != null && isLoggedIn();
+        long delay = ((ConnectionsImpl<String>) connections).getConfig().drainReconnectDelayMs;
+        sendControl(createRestartFrame(resumable ? resumeToken : null, delay));
+        if (resumable) {
+            park();
+        } else {
+            cleanupAndDisconnect(false);
+        }
+    }
+
+    /**
+     * Writes the parked sessions, drained ones included, to {@code file} for the next server process
+     *
+     * @return the number of sessions written
+     */
+    public static int saveSessions(File file) throws IOException {
+        return parked.save(file);
+    }
+
+    /**
+     * Parks the sessions a drained predecessor saved, each for a fresh grace period, and removes the file
+     * so they are not taken over twice. In a cluster each takes its login again; one whose login is now
+     * held elsewhere ends at once.
+     */
+    static void restoreSessions(ConnectionsImpl<String> connImpl, File file) {
+        List<ParkedSessions.Parked> sessions;
+        try {
+            sessions = ParkedSessions.load(file);
+            Files.delete(file.toPath());
+        } catch (IOException ex) {
+            System.err.println("Cannot restore sessions: " + ex.getMessage());
+            return;
+        }
+
+        for (ParkedSessions.Parked session : sessions) {
+            String login = session.user.name;
+            parked.park(session.token, session.user, session.subscriptions, connImpl.getTimers(),
+                    connImpl.getConfig().resumeGraceMs, expired -> endParked(connImpl, expired));
+            connImpl.acquireLogin(login).thenAccept(granted -> {
+                if (granted) return;
+                ParkedSessions.Parked taken = parked.evict(login);
+                if (taken != null) {
+                    taken.user.clearSubscriptions();
+                    taken.user.logout();
+                    Database.getInstance().logLogout(login);
+                }
+            });
+        }
+        System.out.println("Restored " + sessions.size() + " sessions from " + file);
+    }
+
     private void cleanupAndDisconnect(boolean dueToError) {
         if (currentUser != null && currentUser.isLoggedIn()) {
             db.logLogout(currentUser.name);
@@ -283,6 +908,11 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             ((ConnectionsImpl<String>) connections).unsubscribeAll(connectionId);
         }
 
+        if (loginLeased) {
+            loginLeased = false;
+            ((ConnectionsImpl<String>) connections).releaseLogin(currentUser.name);
+        }
+
         if (currentUser != null) {
             activeByConn.remove(connectionId, currentUser);
             activeByName.remove(currentUser.name, currentUser);
@@ -294,12 +924,37 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.disconnect(connectionId);
     }
 
-    private String createConnectedFrame() {
+    /**
+     * @return the server's configuration, the defaults if the connections are not the server's own
+     */
+    private ServerConfig config() {
+        return connections instanceof ConnectionsImpl
+                ? ((ConnectionsImpl<String>) connections).getConfig()
+                : ServerConfig.defaults();
+    }
+
+    private String createConnectedFrame(boolean resumed) {
+        ServerConfig config = config();
         return "CONNECTED\n" +
                 "version:1.2\n" +
+                "heart-beat:" + config.heartbeatSendMs + "," + config.heartbeatReceiveMs + "\n" +
+                (deflate ? "content-encoding:" + MessageBody.DEFLATE + "\n" : "") +
+                (resumeToken != null ? "resume-token:" + resumeToken + "\n" : "") +
+                (resumed ? "resumed:true\n" : "") +
                 "\n";
     }
 
+    private String createRestartFrame(String token, long reconnectDelayMs) {
+        return "ERROR\n" +
+                "message:Server restarting\n" +
+                "reconnect:true\n" +
+                "reconnect-delay:" + reconnectDelayMs + "\n" +
+                (token != null ? "resume-token:" + token + "\n" : "") +
+                "\n" +
+                "The server is restarting. Connect again after reconnect-delay ms" +
+                (token != null ? "; a CONNECT with the resume-token takes this session back.\n" : ".\n");
+    }
+
     private String createReceiptFrame(String receiptId) {
         return "RECEIPT\n" +
                 "receipt-id:" + receiptId + "\n" +
@@ -315,19 +970,43 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
         sb.append("\n");
         sb.append("The message:\n----\n");
-        sb.append(lastFrame).append("\n----\n");
+        if (lastFrame != null) sb.append(lastFrame);
+        sb.append("\n----\n");
         sb.append(details).append("\n");
         return sb.toString();
     }
 
-    private String createMessageFrame(String topic, String subscriptionId, String body) {
-        int msgId = messageIdCounter.incrementAndGet();
+    private static String createMessageFrame(String topic, Subscription sub, int msgId, MessageBody body) {
+        String deflated = sub.deflate ? body.deflated() : null;
+        String content = deflated != null ? deflated : body.plain;
+        // sized up front, so the frame is built without growing the buffer
+        StringBuilder sb = new StringBuilder(160 + sub.id.length() + topic.length() + content.length());
+        sb.append("MESSAGE\n");
+        sb.append("subscription:").append(sub.id).append('\n');
+        sb.append("message-id:").append(msgId).append('\n');
+        if (sub.window != null) {
+            sb.append("ack:").append(msgId).append('\n');
+        }
+        sb.append("destination:").append(topic).append('\n');
+        if (deflated != null) {
+            sb.append("content-encoding:").append(MessageBody.DEFLATE).append('\n');
+            sb.append("content-transfer-encoding:base64\n");
+        } else if (body.contentLength >= 0) {
+            sb.append("content-length:").append(body.contentLength).append('\n');
+        }
+        sb.append('\n');
+        sb.append(content);
+        return sb.toString();
+    }
+
+    private String createSnapshotFrame(String topic, String subscriptionId, String state) {
         return "MESSAGE\n" +
                 "subscription:" + subscriptionId + "\n" +
-                "message-id:" + msgId + "\n" +
+                "message-id:" + messageIdCounter.incrementAndGet() + "\n" +
                 "destination:" + topic + "\n" +
+                "snapshot:true\n" +
                 "\n" +
-                (body == null ? "" : body);
+                state;
     }
 
     @Override
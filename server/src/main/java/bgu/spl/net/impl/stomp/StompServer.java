@@ -2,12 +2,48 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerConfig;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class StompServer {
 
-    private static void startAdminConsole(Database db) {
+    private static final AtomicBoolean drained = new AtomicBoolean(false);
+
+    /**
+     * Restart without dropping sessions: drain the server, save the parked sessions for the next process,
+     * let the database catch up, then close. Runs once, from the console or the shutdown hook.
+     */
+    private static void drainAndClose(Server<String> server, ServerConfig config) {
+        if (!drained.compareAndSet(false, true)) return;
+        System.out.println("Draining...");
+        server.drain(config.drainTimeoutMs);
+        try {
+            int saved = StompMessagingProtocolImpl.saveSessions(new File(config.drainSnapshotFile));
+            System.out.println("Saved " + saved + " sessions to " + config.drainSnapshotFile);
+        } catch (IOException ex) {
+            System.err.println("Cannot save sessions: " + ex.getMessage());
+        }
+        try {
+            Database.getInstance().flush().get(config.drainTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            System.err.println("Database writes did not all complete: " + ex);
+        }
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void startAdminConsole(Database db, Server<String> server, ServerConfig config) {
         Thread t = new Thread(() -> {
             try {
                 Scanner sc = new Scanner(System.in);
@@ -18,6 +54,9 @@ public class StompServer {
                     String line = sc.nextLine().trim();
                     if (line.equalsIgnoreCase("report")) {
                         db.printReport();
+                    } else if (line.equalsIgnoreCase("drain")) {
+                        drainAndClose(server, config);
+                        return;
                     }
                 }
             } catch (Exception ignored) {
@@ -30,30 +69,52 @@ public class StompServer {
     public static void main(String[] args) {
 
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <server_type>");
+            System.out.println("Usage: StompServer <port> <server_type> [sidecar|embedded]");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
-        startAdminConsole(Database.getInstance());
+        try {
+            Database.use(args.length > 2 ? args[2] : Database.SIDECAR);
+        } catch (IllegalArgumentException ex) {
+            System.out.println(ex.getMessage() + ". Use 'sidecar' or 'embedded'.");
+            return;
+        }
 
+        // tuning file, overridable per key with -D
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(System.getProperty("stomp.config", "stomp-server.properties"));
+        } catch (IOException | NumberFormatException ex) {
+            System.out.println("Cannot read server configuration: " + ex.getMessage());
+            return;
+        }
+
+        Server<String> server;
         if (serverType.equals("tpc")) {
-            Server.threadPerClient(
+            server = Server.threadPerClient(
+                    config,
                     port,
                     StompMessagingProtocolImpl::new,
-                    StompEncoderDecoder::new
-            ).serve();
+                    () -> new NegotiatingEncoderDecoder(config.maxFrameSize)
+            );
         } else if (serverType.equals("reactor")) {
-            Server.reactor(
-                    Runtime.getRuntime().availableProcessors(),
+            server = Server.reactor(
+                    config,
                     port,
                     StompMessagingProtocolImpl::new,
-                    StompEncoderDecoder::new
-            ).serve();
+                    () -> new NegotiatingEncoderDecoder(config.maxFrameSize)
+            );
         } else {
             System.out.println("Unknown server type. Use 'tpc' or 'reactor'.");
+            return;
         }
+
+        startAdminConsole(Database.getInstance(), server, config);
+        // a SIGTERM drains as well, so a deploy's stop hands the sessions over
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drainAndClose(server, config), "Drain"));
+        server.serve();
     }
 }
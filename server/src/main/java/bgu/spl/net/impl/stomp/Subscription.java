@@ -0,0 +1,53 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Map;
+
+/**
+ * One SUBSCRIBE of one connection. The destination may be a wildcard pattern.
+ */
+public class Subscription {
+    public static final String ACK_AUTO = "auto";
+    public static final String ACK_CLIENT = "client";
+    public static final String ACK_CLIENT_INDIVIDUAL = "client-individual";
+
+    public final int connectionId;
+    public final String id;
+    public final String destination;
+    // null when the subscriber takes every message
+    public final MessageSelector selector;
+    // the subscriber negotiated deflated bodies at CONNECT
+    public final boolean deflate;
+    // one of the ACK_ modes
+    public final String ack;
+    // null in auto mode, where every message counts as acknowledged once sent
+    public final DeliveryWindow window;
+    // null unless the subscription shares its destination's messages with other members
+    public final ConsumerGroup group;
+
+    public Subscription(int connectionId, String id, String destination, MessageSelector selector, boolean deflate) {
+        this(connectionId, id, destination, selector, deflate, ACK_AUTO, null, null);
+    }
+
+    public Subscription(int connectionId, String id, String destination, MessageSelector selector, boolean deflate,
+                        String ack, DeliveryWindow window, ConsumerGroup group) {
+        this.connectionId = connectionId;
+        this.id = id;
+        this.destination = destination;
+        this.selector = selector;
+        this.deflate = deflate;
+        this.ack = ack;
+        this.window = window;
+        this.group = group;
+    }
+
+    /**
+     * @return true if an ACK or NACK also settles every message delivered before the one it names
+     */
+    public boolean isCumulativeAck() {
+        return ACK_CLIENT.equals(ack);
+    }
+
+    public boolean accepts(Map<String, String> props) {
+        return selector == null || selector.matches(props);
+    }
+}
@@ -0,0 +1,174 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscriptions indexed by destination levels ('/'-separated).
+ * A '*' level matches exactly one level and a trailing '#' matches any number of levels, including none.
+ * Publishing walks one path per wildcard branch, so matching costs the depth of the topic rather than the
+ * number of subscriptions; resolved sets are cached per topic until a subscription that can match it changes.
+ * Changes are serialized on the trie, and a node is pruned once it holds neither subscriptions nor children,
+ * so destinations that come and go leave nothing behind. Matching takes no lock.
+ */
+public class TopicTrie {
+
+    public static final String SINGLE_LEVEL = "*";
+    public static final String MULTI_LEVEL = "#";
+
+    private static final int MAX_CACHED_TOPICS = 1 << 14;
+
+    private final Node root = new Node();
+    private final ConcurrentHashMap<String, List<Subscription>> resolved = new ConcurrentHashMap<>();
+    // bumped by every change, after the trie is updated and before the cache is
+    private final AtomicLong version = new AtomicLong();
+
+    private static class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    }
+
+    public static boolean isPattern(String destination) {
+        for (String level : levels(destination)) {
+            if (level.equals(SINGLE_LEVEL) || level.equals(MULTI_LEVEL)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if '#' appears anywhere but as the last level
+     */
+    public static boolean isValidPattern(String destination) {
+        String[] levels = levels(destination);
+        for (int i = 0; i < levels.length - 1; i++) {
+            if (levels[i].equals(MULTI_LEVEL)) return false;
+        }
+        return true;
+    }
+
+    public static boolean matches(String pattern, String topic) {
+        return matches(levels(pattern), 0, levels(topic), 0);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] topic, int t) {
+        if (p == pattern.length) return t == topic.length;
+        if (pattern[p].equals(MULTI_LEVEL)) return true;
+        if (t == topic.length) return false;
+        if (!pattern[p].equals(SINGLE_LEVEL) && !pattern[p].equals(topic[t])) return false;
+        return matches(pattern, p + 1, topic, t + 1);
+    }
+
+    private static String[] levels(String destination) {
+        return destination.split("/", -1);
+    }
+
+    public void add(Subscription sub) {
+        synchronized (this) {
+            Node node = root;
+            for (String level : levels(sub.destination)) {
+                node = node.children.computeIfAbsent(level, k -> new Node());
+            }
+            node.subscriptions.add(sub);
+        }
+        invalidate(sub.destination);
+    }
+
+    public void remove(Subscription sub) {
+        String[] levels = levels(sub.destination);
+        synchronized (this) {
+            Node[] path = new Node[levels.length + 1];
+            path[0] = root;
+            for (int i = 0; i < levels.length; i++) {
+                path[i + 1] = path[i].children.get(levels[i]);
+                if (path[i + 1] == null) return;
+            }
+            if (!path[levels.length].subscriptions.remove(sub)) return;
+
+            // walk back up, unlinking the nodes left empty
+            for (int i = levels.length; i > 0; i--) {
+                Node node = path[i];
+                if (!node.subscriptions.isEmpty() || !node.children.isEmpty()) break;
+                path[i - 1].children.remove(levels[i - 1], node);
+            }
+        }
+        invalidate(sub.destination);
+    }
+
+    /**
+     * @return the number of nodes below the root, for checking that emptied branches are pruned
+     */
+    int size() {
+        return count(root) - 1;
+    }
+
+    private static int count(Node node) {
+        int n = 1;
+        for (Node child : node.children.values()) {
+            n += count(child);
+        }
+        return n;
+    }
+
+    /**
+     * @return every subscription whose destination matches the topic, never null
+     */
+    public List<Subscription> match(String topic) {
+        List<Subscription> cached = resolved.get(topic);
+        if (cached != null) return cached;
+
+        if (resolved.size() >= MAX_CACHED_TOPICS) {
+            resolved.clear();
+        }
+        long seen = version.get();
+        List<Subscription> result = resolve(topic);
+        resolved.putIfAbsent(topic, result);
+        // a change that raced with the resolve may have invalidated before the entry was in; drop it then
+        if (version.get() != seen) {
+            resolved.remove(topic, result);
+        }
+        return result;
+    }
+
+    private List<Subscription> resolve(String topic) {
+        String[] levels = levels(topic);
+        List<Subscription> result = new ArrayList<>();
+        collect(root, levels, 0, result);
+        return result.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(result);
+    }
+
+    private void collect(Node node, String[] levels, int depth, List<Subscription> out) {
+        Node rest = node.children.get(MULTI_LEVEL);
+        if (rest != null) {
+            out.addAll(rest.subscriptions);
+        }
+        if (depth == levels.length) {
+            out.addAll(node.subscriptions);
+            return;
+        }
+
+        Node exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            collect(exact, levels, depth + 1, out);
+        }
+        Node any = node.children.get(SINGLE_LEVEL);
+        if (any != null) {
+            collect(any, levels, depth + 1, out);
+        }
+    }
+
+    // the trie is updated before the cache is touched, so a concurrent resolve either sees the change or is
+    // dropped here, or by itself when it finds the version moved
+    private void invalidate(String destination) {
+        version.incrementAndGet();
+        if (isPattern(destination)) {
+            String[] pattern = levels(destination);
+            resolved.keySet().removeIf(topic -> matches(pattern, 0, levels(topic), 0));
+        } else {
+            resolved.remove(destination);
+        }
+    }
+}
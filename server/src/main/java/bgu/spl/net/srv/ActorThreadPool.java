@@ -1,77 +1,140 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Runs the tasks of each actor one at a time and in order, sharing the threads fairly between actors.
+ * Actors with work wait their turn in the pool's FIFO queue; a turn runs the actor's tasks until it has
+ * used {@code quantum * weight} of CPU time, and an actor with work left goes to the back of the line.
+ * A task that overruns the turn is paid back out of the actor's next turns (deficit round-robin), so a
+ * connection sending large bursts gets no more time than its weight, however its work is cut into tasks.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
+    public static final long DEFAULT_QUANTUM_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Queued on the pool as its own turn, so scheduling one allocates no task
+     */
+    private final class Actor implements Runnable {
+        // guarded by this
+        final Queue<Runnable> pending = new ArrayDeque<>(4);
+        boolean playing = false;
+        volatile int weight = 1;
+        // time left in the current turn, in ns; only touched by the thread playing the actor
+        long deficit = 0;
+
+        @Override
+        public void run() {
+            play(this);
+        }
+    }
+
+    private final Map<Object, Actor> acts;
     private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
     private final ExecutorService threads;
+    private final long quantumNs;
+    // submitted tasks that have not finished yet
+    private final AtomicInteger backlog = new AtomicInteger(0);
 
     public ActorThreadPool(int threads) {
+        this(threads, DEFAULT_QUANTUM_NS);
+    }
+
+    /**
+     * @param quantumNs CPU time a turn of an actor of weight 1 may take
+     */
+    public ActorThreadPool(int threads, long quantumNs) {
         this.threads = Executors.newFixedThreadPool(threads);
+        this.quantumNs = Math.max(1, quantumNs);
         acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
         actsRWLock = new ReentrantReadWriteLock();
     }
 
     public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+        backlog.incrementAndGet();
+        Actor actor = actorOf(act);
+        synchronized (actor) {
+            actor.pending.add(r);
+            if (actor.playing) return;
+            actor.playing = true;
         }
+        threads.execute(actor);
+    }
+
+    /**
+     * Gives the actor {@code weight} times the share of an ordinary one; the default is 1
+     */
+    public void setWeight(Object act, int weight) {
+        actorOf(act).weight = Math.max(1, weight);
+    }
+
+    /**
+     * @return the number of tasks queued or running
+     */
+    public int backlog() {
+        return backlog.get();
     }
 
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
+    private Actor actorOf(Object act) {
 
         actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
+        Actor actor = acts.get(act);
         actsRWLock.readLock().unlock();
 
-        if (pendingRunnables == null) {
+        if (actor == null) {
             actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
+            actor = acts.computeIfAbsent(act, k -> new Actor());
             actsRWLock.writeLock().unlock();
         }
-        return pendingRunnables;
-    }
-
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
-                r.run();
-            } finally {
-                complete(act);
-            }
-        });
+        return actor;
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
+    /**
+     * One turn of the actor
+     */
+    private void play(Actor actor) {
+        boolean idle = false;
+        actor.deficit += quantumNs * actor.weight;
+        try {
+            while (true) {
+                Runnable task;
+                synchronized (actor) {
+                    if (actor.pending.isEmpty()) {
+                        // an actor that ran out of work starts afresh, as in plain deficit round-robin
+                        actor.playing = false;
+                        actor.deficit = 0;
+                        idle = true;
+                        return;
+                    }
+                    // out of time, possibly still paying back an overrun
+                    if (actor.deficit <= 0) return;
+                    task = actor.pending.poll();
+                }
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    backlog.decrementAndGet();
+                    actor.deficit -= System.nanoTime() - start;
+                }
             }
+        } finally {
+            // the turn is used up, or a task threw: back of the line with whatever is left
+            if (!idle) threads.execute(actor);
         }
     }
 
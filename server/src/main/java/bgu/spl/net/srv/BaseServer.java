@@ -5,35 +5,73 @@ import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
 
     private final int port;
+    private final ServerConfig config;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
-    private ServerSocket sock;
+    private volatile ServerSocket sock;
+    private volatile boolean draining = false;
+    // released by close(); a drain holds the timers and writers until then
+    private final CountDownLatch closed = new CountDownLatch(1);
     private int connectionIdCounter = 0;
+
+    private static final long DRAIN_POLL_MS = 20;
     private ConnectionsImpl<T> connections;
+    private final TimingWheel timers = new TimingWheel(100, 512);
+    // drains the outbound queues. A fixed number of threads: a peer that stops reading holds one until its
+    // write gets nothing out for writeTimeoutMs, and closing the socket then releases the writer
+    private final ExecutorService writers;
+    // connections with a write task queued or running; the admission backlog for this mode
+    private final AtomicInteger pendingWrites = new AtomicInteger(0);
+    private final Executor writeTasks = this::submitWrite;
 
     public BaseServer(
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(ServerConfig.defaults(), port, protocolFactory, encdecFactory);
+    }
 
+    public BaseServer(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+
+        this.config = config;
+        this.writers = Executors.newFixedThreadPool(config.writerThreads, r -> {
+            Thread t = new Thread(r, "Writer");
+            t.setDaemon(true);
+            return t;
+        });
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
 		this.sock = null;
         this.connections = new ConnectionsImpl<>();
+        this.connections.setTimers(timers);
+        this.connections.configure(config);
+        this.connections.setWriterBacklog(pendingWrites::get);
     }
 
     @Override
     public void serve() {
 
-        try (ServerSocket serverSock = new ServerSocket(port)) {
+        try (ServerSocket serverSock = new ServerSocket()) {
+            config.configureListener(serverSock);
+            serverSock.bind(new InetSocketAddress(port), config.acceptBacklog);
 			System.out.println("Server started");
 
             this.sock = serverSock;
@@ -41,28 +79,76 @@ public abstract class BaseServer<T> implements Server<T> {
             while (!Thread.currentThread().isInterrupted()) {
 
                 Socket clientSock = serverSock.accept();
+                config.configure(clientSock);
 
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
                         protocolFactory.get()
                         ,connectionIdCounter++,
-                        connections);
+                        connections,
+                        timers,
+                        writeTasks,
+                        config);
 
                 execute(handler);
             }
         } catch (IOException ex) {
         }
 
+        // a drain closed the listener, but the connections still need the timers and writers until it is over
+        if (draining) {
+            try {
+                closed.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        timers.stop();
+        writers.shutdown();
+        connections.shutdown();
         System.out.println("server closed!!!");
     }
 
+    @Override
+    public void drain(long timeoutMs) {
+        ServerSocket serverSock = sock;
+        if (serverSock == null) return;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        draining = true;
+        try {
+            serverSock.close();
+        } catch (IOException ignored) {
+        }
+        connections.drain();
+        try {
+            while (connections.openConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(DRAIN_POLL_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void close() throws IOException {
+        closed.countDown();
 		if (sock != null)
 			sock.close();
     }
 
+    private void submitWrite(Runnable task) {
+        pendingWrites.incrementAndGet();
+        writers.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                pendingWrites.decrementAndGet();
+            }
+        });
+    }
+
     protected abstract void execute(BlockingConnectionHandler<T>  handler);
 
 }
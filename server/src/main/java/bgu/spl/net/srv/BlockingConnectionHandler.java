@@ -7,11 +7,16 @@ import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
@@ -21,40 +26,86 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     private final int connectionId;
     private final Connections<T> connections;
+    private final HeartbeatMonitor monitor;
+    private final RateLimiter connectionLimit;
+    private final ServerConfig config;
+    private volatile RateLimiter userLimit = null;
+    private final OutboundLanes<byte[]> writeQueue = new OutboundLanes<>();
+    private final Executor writers;
+    // set while a writer task owns the queue
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final TimingWheel timers;
+    // while a write is in progress, when it last got a frame out; 0 otherwise
+    private volatile long writeProgressAt = 0;
+    // set while a check of the write in progress is scheduled
+    private final AtomicBoolean writeWatched = new AtomicBoolean(false);
+    private final Runnable checkWrite = this::checkWrite;
 
 
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol, int connectionId, Connections<T> connections) {
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol, int connectionId, Connections<T> connections, TimingWheel timers, Executor writers, ServerConfig config) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
         this.connectionId = connectionId;
         this.connections = connections;
+        this.writers = writers;
+        this.timers = timers;
+        this.config = config;
+        this.connectionLimit = config.connectionLimiter();
+        this.monitor = new HeartbeatMonitor(timers, config.idleTimeoutMs, this::sendHeartbeat, this::expire);
     }
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { 
-            int read = -1; 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+        try (Socket sock = this.sock) {
+            int read = -1;
+            in = new BufferedInputStream(sock.getInputStream(), config.readBufferSize);
+            out = new BufferedOutputStream(sock.getOutputStream(), config.readBufferSize);
 
             if (protocol instanceof StompMessagingProtocol) {
+                ((StompMessagingProtocol<T>) protocol).attach(encdec);
                 ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
             }
 
             if (connections instanceof ConnectionsImpl) {
                 ((ConnectionsImpl<T>) connections).addConnection(connectionId, this);
             }
+            monitor.start();
+            int bytes = 0;
             while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
+                monitor.onRead();
+                bytes++;
                 T nextMessage = encdec.decodeNextByte((byte) read);
                 if (nextMessage != null) {
-                    protocol.process(nextMessage);
+                    synchronized (this) {
+                        protocol.process(nextMessage);
+                    }
+                    // over the limit: leave the socket unread for a while, the peer's sends back up in TCP
+                    long pause = RateLimiter.acquire(connectionLimit, userLimit, 1, bytes);
+                    bytes = 0;
+                    if (pause > 0) {
+                        Thread.sleep(pause);
+                    }
                 }
             }
-            connections.disconnect(connectionId);
+            // whatever is still queued (a DISCONNECT receipt, an ERROR) goes out before the socket closes
+            flushQueue();
 
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (connected) ex.printStackTrace();
+        } finally {
+            monitor.stop();
+            if (protocol instanceof StompMessagingProtocol) {
+                synchronized (this) {
+                    ((StompMessagingProtocol<T>) protocol).onClose();
+                }
+            }
+            connections.disconnect(connectionId);
+            if (connections instanceof ConnectionsImpl) {
+                ((ConnectionsImpl<T>) connections).connectionClosed();
+            }
         }
     }
     @Override
@@ -65,19 +116,150 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void send(T msg) {
-        try {
-            if(msg!=null){
-                synchronized(out){
-                    out.write(encdec.encode(msg));
-                    out.flush();
+        if (msg != null && connected) {
+            if (config.maxOutboundFrames > 0 && writeQueue.size() >= config.maxOutboundFrames) {
+                // a consumer this far behind is not coming back; drop it rather than buffer without end
+                expire();
+                return;
+            }
+            writeQueue.addData(encdec.encode(msg));
+            scheduleWrite();
+        }
+    }
+
+    @Override
+    public int backlog() {
+        return writeQueue.size();
+    }
+
+    @Override
+    public void sendAll(List<T> msgs) {
+        if (msgs.isEmpty() || !connected) return;
+        if (config.maxOutboundFrames > 0 && writeQueue.size() >= config.maxOutboundFrames) {
+            expire();
+            return;
+        }
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (T msg : msgs) {
+            byte[] frame = encdec.encode(msg);
+            batch.write(frame, 0, frame.length);
+        }
+        writeQueue.addData(batch.toByteArray());
+        scheduleWrite();
+    }
+
+    @Override
+    public void sendControl(T msg) {
+        if (msg != null && connected) {
+            writeQueue.addControl(encdec.encode(msg));
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Hands the queue to a writer task unless one already owns it; the caller never touches the socket
+     */
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writers.execute(this::writeQueued);
+        }
+    }
+
+    private void writeQueued() {
+        do {
+            try {
+                flushQueue();
+            } catch (IOException ex) {
+                if (connected) ex.printStackTrace();
+                expire();
+                while (writeQueue.poll() != null) {
+                    // the peer is gone, drop what it will never read
                 }
+            } finally {
+                writeScheduled.set(false);
             }
+        } while (!writeQueue.isEmpty() && connected && writeScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes everything queued so far, control lane first, with a single flush at the end
+     */
+    private void flushQueue() throws IOException {
+        synchronized (out) {
+            writeProgressAt = System.currentTimeMillis();
+            watchWrite();
+            try {
+                byte[] frame;
+                while ((frame = writeQueue.poll()) != null) {
+                    out.write(frame);
+                    writeProgressAt = System.currentTimeMillis();
+                }
+                out.flush();
+            } finally {
+                writeProgressAt = 0;
+            }
+        }
+        monitor.onWrite();
+    }
+
+    private void watchWrite() {
+        if (config.writeTimeoutMs > 0 && writeWatched.compareAndSet(false, true)) {
+            timers.schedule(checkWrite, config.writeTimeoutMs);
+        }
+    }
+
+    /**
+     * Drops the connection if its write has got nothing out for too long: closing the socket is the only
+     * way to free the writer thread blocked in it
+     */
+    private void checkWrite() {
+        writeWatched.set(false);
+        long since = writeProgressAt;
+        if (since == 0 || !connected) return;
+        long stalled = System.currentTimeMillis() - since;
+        if (stalled >= config.writeTimeoutMs) {
+            expire();
+        } else if (writeWatched.compareAndSet(false, true)) {
+            timers.schedule(checkWrite, config.writeTimeoutMs - stalled);
+        }
+    }
+
+    @Override
+    public void setHeartbeat(long outgoingMs, long incomingMs) {
+        monitor.configure(outgoingMs, incomingMs);
+    }
+
+    @Override
+    public void setUserLimit(RateLimiter limiter) {
+        userLimit = limiter;
+    }
+
+    @Override
+    public void drain() {
+        if (protocol instanceof StompMessagingProtocol) {
+            synchronized (this) {
+                ((StompMessagingProtocol<T>) protocol).onDrain();
+            }
+        }
+        // the reading thread is blocked in read(); ending the input lets it flush the queue and close
+        try {
+            sock.shutdownInput();
+        } catch (IOException ignored) {
         }
-        
-        catch(IOException e){
-            e.printStackTrace();
+    }
 
+    private void sendHeartbeat() {
+        if (connected) {
+            writeQueue.addControl(encdec.heartbeat());
+            scheduleWrite();
         }
     }
-    
+
+    private void expire() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
 }
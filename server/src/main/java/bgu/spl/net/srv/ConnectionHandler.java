@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.util.List;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,39 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Like {@link #send}, but the frame is written ahead of queued messages
+     * (connection replies, receipts, errors)
+     */
+    void sendControl(T msg);
+
+    /**
+     * Sends the messages in order as a single write
+     */
+    void sendAll(List<T> msgs);
+
+    /**
+     * @return frames queued for writing and not yet written
+     */
+    int backlog();
+
+    /**
+     * Starts heart-beating on this connection
+     * @param outgoingMs interval at which heart-beats are sent to the peer, 0 for none
+     * @param incomingMs interval at which the peer promised to send, 0 for none
+     */
+    void setHeartbeat(long outgoingMs, long incomingMs);
+
+    /**
+     * Applies the limits of the logged in user on top of the connection's own
+     * @param limiter shared by all connections of that user, null for none
+     */
+    void setUserLimit(RateLimiter limiter);
+
+    /**
+     * The server is going down: lets the protocol take leave of the client on the connection's actor,
+     * then closes the connection once what is queued for it is written
+     */
+    void drain();
+
 }
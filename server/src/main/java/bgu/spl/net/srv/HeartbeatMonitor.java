@@ -0,0 +1,122 @@
+package bgu.spl.net.srv;
+
+/**
+ * Liveness bookkeeping of a single connection.
+ * Reads and writes only stamp a timestamp; the actual checks run from a single timeout on the shared
+ * {@link TimingWheel}, which re-arms itself for the nearest of the read deadline and the next heart-beat.
+ */
+public class HeartbeatMonitor implements Runnable {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+
+    // a peer is declared dead only after missing its negotiated interval this many times over
+    private static final int READ_GRACE_FACTOR = 2;
+
+    private final TimingWheel wheel;
+    private final Runnable heartbeat;
+    private final Runnable expire;
+    // the read deadline of a peer that does not heart-beat
+    private final long idleTimeoutMs;
+
+    private volatile long lastRead;
+    private volatile long lastWrite;
+    private long readTimeoutMs;
+    private long writeIntervalMs = 0;
+
+    private TimingWheel.Timeout timeout = null;
+    private boolean stopped = false;
+
+    /**
+     * @param idleTimeoutMs how long a connection may stay silent before it negotiates heart-beating, 0 to disable
+     * @param heartbeat     writes a heart-beat to the peer
+     * @param expire        closes the connection once the peer is considered dead
+     */
+    public HeartbeatMonitor(TimingWheel wheel, long idleTimeoutMs, Runnable heartbeat, Runnable expire) {
+        this.wheel = wheel;
+        this.heartbeat = heartbeat;
+        this.expire = expire;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.readTimeoutMs = idleTimeoutMs;
+        this.lastRead = this.lastWrite = System.currentTimeMillis();
+    }
+
+    public synchronized void start() {
+        arm();
+    }
+
+    public void onRead() {
+        lastRead = System.currentTimeMillis();
+    }
+
+    public void onWrite() {
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Applies the negotiated heart-beat intervals, 0 meaning none in that direction. A peer that sends no
+     * heart-beats keeps the idle timeout, so a half-open connection is still reaped.
+     */
+    public synchronized void configure(long outgoingMs, long incomingMs) {
+        writeIntervalMs = outgoingMs;
+        readTimeoutMs = incomingMs > 0 ? incomingMs * READ_GRACE_FACTOR : idleTimeoutMs;
+        lastRead = System.currentTimeMillis();
+        arm();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean dead;
+        boolean beat;
+        synchronized (this) {
+            if (stopped) return;
+            timeout = null;
+            long now = System.currentTimeMillis();
+            dead = readTimeoutMs > 0 && now - lastRead >= readTimeoutMs;
+            beat = !dead && writeIntervalMs > 0 && now - lastWrite >= writeIntervalMs;
+            if (dead) {
+                stopped = true;
+            }
+        }
+
+        if (dead) {
+            expire.run();
+            return;
+        }
+        if (beat) {
+            heartbeat.run();
+            onWrite();
+        }
+
+        synchronized (this) {
+            if (!stopped && timeout == null) arm();
+        }
+    }
+
+    private void arm() {
+        if (stopped) return;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+
+        long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        if (readTimeoutMs > 0) {
+            delay = Math.min(delay, lastRead + readTimeoutMs - now);
+        }
+        if (writeIntervalMs > 0) {
+            delay = Math.min(delay, lastWrite + writeIntervalMs - now);
+        }
+        if (delay != Long.MAX_VALUE) {
+            timeout = wheel.schedule(this, delay);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * A concurrent map from int keys, such as connection ids, that boxes no key and allocates no node per
+ * entry. Keys are spread over segments, each an open-addressing table of two parallel arrays behind its
+ * own {@link StampedLock}: a lookup reads optimistically and only locks if a writer got in its way, and
+ * writers of different segments do not contend. Values may not be null; a null slot is an empty one.
+ */
+public class IntHashMap<V> {
+
+    private static final int SEGMENTS = 16;
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * One segment's table, probed linearly; removals shift the following entries back instead of
+     * leaving tombstones, so a lookup stops at the first empty slot
+     */
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        int[] keys = new int[MIN_CAPACITY];
+        Object[] values = new Object[MIN_CAPACITY];
+        int size = 0;
+    }
+
+    // returned by an optimistic lookup that caught a resize half done
+    private static final Object TORN = new Object();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public IntHashMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int h = hash(key);
+        Segment seg = segments[h >>> 28];
+        long stamp = seg.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Object found = find(seg.keys, seg.values, key, h);
+            if (seg.lock.validate(stamp)) return (V) found;
+        }
+        stamp = seg.lock.readLock();
+        try {
+            return (V) find(seg.keys, seg.values, key, h);
+        } finally {
+            seg.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the value the key had, null if none
+     */
+    public V put(int key, V value) {
+        if (value == null) throw new NullPointerException();
+        return update(key, current -> value);
+    }
+
+    public V putIfAbsent(int key, V value) {
+        if (value == null) throw new NullPointerException();
+        return update(key, current -> current == null ? value : current);
+    }
+
+    /**
+     * @return the value the key had, null if none
+     */
+    public V remove(int key) {
+        return update(key, current -> null);
+    }
+
+    /**
+     * Removes the key only while it maps to {@code value}
+     */
+    public boolean remove(int key, V value) {
+        if (value == null) return false;
+        return value.equals(update(key, current -> value.equals(current) ? null : current));
+    }
+
+    /**
+     * Replaces the key's value with what {@code function} makes of it, atomically; the function gets null
+     * for an absent key and returns null to remove it. It runs under the segment's lock, so it must be
+     * quick and must not touch this map.
+     *
+     * @return the new value, null if the key is absent now
+     */
+    public V compute(int key, UnaryOperator<V> function) {
+        int h = hash(key);
+        Segment seg = segments[h >>> 28];
+        long stamp = seg.lock.writeLock();
+        try {
+            int slot = slotOf(seg, key, h);
+            @SuppressWarnings("unchecked")
+            V next = function.apply(slot < 0 ? null : (V) seg.values[slot]);
+            store(seg, slot, key, h, next);
+            return next;
+        } finally {
+            seg.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment seg : segments) {
+            long stamp = seg.lock.readLock();
+            size += seg.size;
+            seg.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of the values, taken one segment at a time
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> values = new ArrayList<>();
+        for (Segment seg : segments) {
+            long stamp = seg.lock.readLock();
+            try {
+                for (Object v : seg.values) {
+                    if (v != null) values.add((V) v);
+                }
+            } finally {
+                seg.lock.unlockRead(stamp);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the value the key had before
+     */
+    private V update(int key, UnaryOperator<V> function) {
+        int h = hash(key);
+        Segment seg = segments[h >>> 28];
+        long stamp = seg.lock.writeLock();
+        try {
+            int slot = slotOf(seg, key, h);
+            @SuppressWarnings("unchecked")
+            V previous = slot < 0 ? null : (V) seg.values[slot];
+            store(seg, slot, key, h, function.apply(previous));
+            return previous;
+        } finally {
+            seg.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sets the key's value; {@code slot} is where the key is, or -1 if it is absent
+     */
+    private static void store(Segment seg, int slot, int key, int h, Object value) {
+        if (slot >= 0) {
+            if (value != null) {
+                seg.values[slot] = value;
+            } else {
+                delete(seg, slot);
+                if (seg.values.length > MIN_CAPACITY && seg.size < seg.values.length / 8) {
+                    resize(seg, seg.values.length / 2);
+                }
+            }
+        } else if (value != null) {
+            // at most three quarters full, so probes stay short and always end on an empty slot
+            if ((seg.size + 1) * 4 > seg.values.length * 3) {
+                resize(seg, seg.values.length * 2);
+            }
+            int mask = seg.values.length - 1;
+            int i = h & mask;
+            while (seg.values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            seg.keys[i] = key;
+            seg.values[i] = value;
+            seg.size++;
+        }
+    }
+
+    private static int slotOf(Segment seg, int key, int h) {
+        int mask = seg.values.length - 1;
+        for (int i = h & mask; seg.values[i] != null; i = (i + 1) & mask) {
+            if (seg.keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A lookup that may run alongside a writer: it never probes past the table and gives up on arrays of
+     * different sizes; the caller's validation discards whatever it finds then
+     */
+    private static Object find(int[] keys, Object[] values, int key, int h) {
+        if (keys.length != values.length) return TORN;
+        int mask = values.length - 1;
+        int i = h & mask;
+        for (int probes = 0; probes < values.length; probes++) {
+            Object v = values[i];
+            if (v == null) return null;
+            if (keys[i] == key) return v;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private static void delete(Segment seg, int slot) {
+        int[] keys = seg.keys;
+        Object[] values = seg.values;
+        int mask = values.length - 1;
+        int gap = slot;
+        for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            // an entry may fill the gap if the gap lies between its home slot and where it sits now
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+        seg.size--;
+    }
+
+    private static void resize(Segment seg, int capacity) {
+        int[] oldKeys = seg.keys;
+        Object[] oldValues = seg.values;
+        int[] keys = new int[capacity];
+        Object[] values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+        seg.keys = keys;
+        seg.values = values;
+    }
+
+    /**
+     * Connection ids are sequential; this scatters them, the top bits picking the segment and the low bits
+     * the slot
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
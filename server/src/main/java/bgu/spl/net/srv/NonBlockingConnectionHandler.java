@@ -9,39 +9,85 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    // read buffers between connections; bounded, and taking or returning one allocates nothing
+    private static final ArrayBlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<>(1024);
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final OutboundLanes<ByteBuffer> writeQueue = new OutboundLanes<>();
+    // the frame being written; it is finished before anything else is polled
+    private ByteBuffer writing = null;
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final Reactor<T> reactor;
 
     private final int connectionId;
     private final Connections<T> connections;
+    private final HeartbeatMonitor monitor;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final TimingWheel timers;
+    private final RateLimiter connectionLimit;
+    private final int bufferSize;
+    private final int maxOutboundFrames;
+    private volatile RateLimiter userLimit = null;
+    // while set the selector does not read this connection; cleared by a timeout on the wheel
+    private volatile boolean readPaused = false;
+    private volatile long pausedUntil = 0;
+    // reads handed to the actor and not decoded yet, guarded by this. Past MAX_QUEUED_READS the selector
+    // stops reading, so a peer that sends faster than its share of the workers waits in TCP, not in the heap
+    private final Queue<ByteBuffer> input = new ArrayDeque<>(MAX_QUEUED_READS);
+    private int queuedReads = 0;
+    private volatile boolean backlogged = false;
+    private static final int MAX_QUEUED_READS = 4;
+    // only touched by this connection's actor tasks
+    private boolean decodeDeferred = false;
+
+    // built once, so that reading and writing do not allocate a task per event
+    private final Runnable decodeTask = () -> {
+        if (!decodeDeferred) decodeInput();
+    };
+    private final Runnable resumeDecode = () -> {
+        decodeDeferred = false;
+        decodeInput();
+    };
+    // set while an interest update is queued for the selector thread; later requests ride along with it
+    private final AtomicBoolean opsUpdatePending = new AtomicBoolean(false);
+    private final IntSupplier ops = this::interestOps;
+    private final Runnable applyOps = this::applyQueuedOps;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor,
+            Reactor<T> reactor,
             int connectionId,      
-            Connections<T> connections) {
+            Connections<T> connections,
+            TimingWheel timers,
+            ServerConfig config) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.reactor = reactor;
         this.connectionId = connectionId;
         this.connections = connections;
+        this.timers = timers;
+        this.connectionLimit = config.connectionLimiter();
+        this.bufferSize = config.readBufferSize;
+        this.maxOutboundFrames = config.maxOutboundFrames;
+        this.monitor = new HeartbeatMonitor(timers, config.idleTimeoutMs, this::sendHeartbeat, this::expire);
 
         // אתחול פרוטוקול STOMP
         if (protocol instanceof StompMessagingProtocol) {
+            ((StompMessagingProtocol<T>) protocol).attach(reader);
             ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
         }
 
@@ -49,32 +95,25 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         if (connections instanceof ConnectionsImpl) {
             ((ConnectionsImpl<T>) connections).addConnection(connectionId, this);
         }
+        monitor.start();
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer buf = leaseBuffer(bufferSize);
 
-        boolean success = false;
+        int read = -1;
         try {
-            success = chan.read(buf) != -1;
+            read = chan.read(buf);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
-        if (success) {
+        if (read != -1) {
+            monitor.onRead();
+            throttle(RateLimiter.acquire(connectionLimit, userLimit, 0, read));
             buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                        }
-                    }
-                } finally {
-                    releaseBuffer(buf);
-                }
-            };
+            readQueued(buf);
+            return decodeTask;
         } else {
             releaseBuffer(buf);
             close();
@@ -82,7 +121,66 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         }
     }
 
+    /**
+     * Decodes and processes what has been read. A frame that takes the connection over its limits
+     * leaves the rest of the input for a later actor task, so a burst that arrived in a single read
+     * is spread out as well.
+     */
+    private void decodeInput() {
+        ByteBuffer buf;
+        while ((buf = nextInput()) != null) {
+            try {
+                while (buf.hasRemaining()) {
+                    T nextMessage = encdec.decodeNextByte(buf.get());
+                    if (nextMessage == null) continue;
+                    protocol.process(nextMessage);
+
+                    long pause = RateLimiter.acquire(connectionLimit, userLimit, 1, 0);
+                    if (pause > 0 && !closed.get()) {
+                        throttle(pause);
+                        decodeDeferred = true;
+                        timers.schedule(() -> reactor.execute(this, resumeDecode), pause);
+                        return;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                readDecoded();
+                throw ex;
+            }
+            readDecoded();
+        }
+    }
+
+    private void readQueued(ByteBuffer buf) {
+        synchronized (this) {
+            input.add(buf);
+            if (++queuedReads < MAX_QUEUED_READS || backlogged) return;
+            backlogged = true;
+        }
+        updateOps();
+    }
+
+    private synchronized ByteBuffer nextInput() {
+        return input.peek();
+    }
+
+    /**
+     * The first queued read is used up
+     */
+    private void readDecoded() {
+        synchronized (this) {
+            releaseBuffer(input.poll());
+            if (--queuedReads >= MAX_QUEUED_READS || !backlogged) return;
+            backlogged = false;
+        }
+        if (!closed.get()) {
+            updateOps();
+        }
+    }
+
     public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        monitor.stop();
         try {
             // ניתוק מסודר
             connections.disconnect(connectionId);
@@ -90,6 +188,13 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        if (connections instanceof ConnectionsImpl) {
+            ((ConnectionsImpl<T>) connections).connectionClosed();
+        }
+
+        if (protocol instanceof StompMessagingProtocol) {
+            reactor.execute(this, ((StompMessagingProtocol<T>) protocol)::onClose);
+        }
     }
 
     public boolean isClosed() {
@@ -97,31 +202,81 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        while (writing != null || (writing = writeQueue.poll()) != null) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
+                chan.write(writing);
+                monitor.onWrite();
+                if (writing.hasRemaining()) {
                     return;
-                } else {
-                    writeQueue.remove();
                 }
+                writing = null;
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
             }
         }
 
         if (writeQueue.isEmpty()) {
             if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+            else updateOps();
+        }
+    }
+
+    /**
+     * Brings the selector's interest in this connection up to date. Off the selector thread at most one
+     * update is queued at a time; it works the ops out when it runs, so it covers every request before it.
+     */
+    private void updateOps() {
+        if (reactor.isSelectorThread()) {
+            reactor.updateInterestedOps(chan, ops);
+        } else if (opsUpdatePending.compareAndSet(false, true)) {
+            reactor.runOnSelectorThread(applyOps);
+        }
+    }
+
+    private void applyQueuedOps() {
+        opsUpdatePending.set(false);
+        reactor.updateInterestedOps(chan, ops);
+    }
+
+    private int interestOps() {
+        return (readPaused || backlogged ? 0 : SelectionKey.OP_READ) | (writing == null && writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Stops reading for {@code pauseMs}; writes carry on
+     */
+    private void throttle(long pauseMs) {
+        if (pauseMs <= 0 || closed.get()) return;
+        long until = System.currentTimeMillis() + pauseMs;
+        synchronized (this) {
+            if (until <= pausedUntil) return;
+            pausedUntil = until;
+            readPaused = true;
         }
+        updateOps();
+        timers.schedule(this::resumeReading, pauseMs);
     }
 
-    private static ByteBuffer leaseBuffer() {
+    private void resumeReading() {
+        synchronized (this) {
+            long left = pausedUntil - System.currentTimeMillis();
+            if (!readPaused || left > 0) {
+                if (readPaused) timers.schedule(this::resumeReading, left);
+                return;
+            }
+            readPaused = false;
+        }
+        if (!closed.get()) {
+            updateOps();
+        }
+    }
+
+    private static ByteBuffer leaseBuffer(int size) {
         ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+        if (buff == null || buff.capacity() != size) {
+            return ByteBuffer.allocateDirect(size);
         }
 
         buff.clear();
@@ -129,14 +284,83 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+        BUFFER_POOL.offer(buff);
     }
 
     @Override
     public void send(T msg) {
         if (msg != null) {
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            if (maxOutboundFrames > 0 && writeQueue.size() >= maxOutboundFrames) {
+                // a consumer this far behind is not coming back; drop it rather than buffer without end
+                reactor.runOnSelectorThread(this::close);
+                return;
+            }
+            writeQueue.addData(ByteBuffer.wrap(encdec.encode(msg)));
+            updateOps();
+        }
+    }
+
+    @Override
+    public int backlog() {
+        return writeQueue.size();
+    }
+
+    @Override
+    public void sendAll(List<T> msgs) {
+        if (msgs.isEmpty()) return;
+        if (maxOutboundFrames > 0 && writeQueue.size() >= maxOutboundFrames) {
+            reactor.runOnSelectorThread(this::close);
+            return;
+        }
+        byte[][] encoded = new byte[msgs.size()][];
+        int total = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = encdec.encode(msgs.get(i));
+            total += encoded[i].length;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(total);
+        for (byte[] frame : encoded) {
+            batch.put(frame);
+        }
+        batch.flip();
+        writeQueue.addData(batch);
+        updateOps();
+    }
+
+    @Override
+    public void sendControl(T msg) {
+        if (msg != null) {
+            writeQueue.addControl(ByteBuffer.wrap(encdec.encode(msg)));
+            updateOps();
+        }
+    }
+
+    @Override
+    public void setHeartbeat(long outgoingMs, long incomingMs) {
+        monitor.configure(outgoingMs, incomingMs);
+    }
+
+    @Override
+    public void setUserLimit(RateLimiter limiter) {
+        userLimit = limiter;
+    }
+
+    @Override
+    public void drain() {
+        if (protocol instanceof StompMessagingProtocol) {
+            // the protocol terminates, and continueWrite closes once its last frames are out
+            reactor.execute(this, ((StompMessagingProtocol<T>) protocol)::onDrain);
+        } else {
+            reactor.runOnSelectorThread(this::close);
         }
     }
+
+    private void sendHeartbeat() {
+        writeQueue.addControl(ByteBuffer.wrap(encdec.heartbeat()));
+        updateOps();
+    }
+
+    private void expire() {
+        reactor.runOnSelectorThread(this::close);
+    }
 }
\ No newline at end of file
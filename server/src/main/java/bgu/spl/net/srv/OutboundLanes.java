@@ -0,0 +1,62 @@
+package bgu.spl.net.srv;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outbound queue of one connection, split into a control lane (receipts, errors, heart-beats) and a
+ * data lane (messages). Any thread may add; a single drainer at a time polls. Control goes first, but
+ * after {@link #CONTROL_WEIGHT} control items in a row one data item is let through, so a stream of
+ * receipts cannot starve message delivery either.
+ */
+public class OutboundLanes<E> {
+
+    private static final int CONTROL_WEIGHT = 8;
+
+    private final Queue<E> control = new ConcurrentLinkedQueue<>();
+    private final Queue<E> data = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    // confined to the drainer
+    private int controlStreak = 0;
+
+    public void addControl(E item) {
+        control.add(item);
+        size.incrementAndGet();
+    }
+
+    public void addData(E item) {
+        data.add(item);
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return the number of queued items, both lanes
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return control.isEmpty() && data.isEmpty();
+    }
+
+    /**
+     * @return the next item to write, null if both lanes are empty
+     */
+    public E poll() {
+        E item = null;
+        if (controlStreak < CONTROL_WEIGHT || data.isEmpty()) {
+            item = control.poll();
+        }
+        if (item != null) {
+            controlStreak++;
+        } else {
+            controlStreak = 0;
+            item = data.poll();
+            if (item == null) item = control.poll();
+        }
+        if (item != null) size.decrementAndGet();
+        return item;
+    }
+}
@@ -0,0 +1,56 @@
+package bgu.spl.net.srv;
+
+/**
+ * Token buckets on frames per second and bytes per second, each holding at most one second's worth.
+ * A caller always gets what it asked for; when that overdraws a bucket it is told how long to stop
+ * reading until the debt is paid back. A rate of 0 leaves that dimension unlimited.
+ * The configured limits are in {@link ServerConfig}.
+ */
+public class RateLimiter {
+
+    private final double framesPerSec;
+    private final double bytesPerSec;
+    private double frames;
+    private double bytes;
+    private long last;
+
+    public RateLimiter(double framesPerSec, double bytesPerSec) {
+        this.framesPerSec = framesPerSec;
+        this.bytesPerSec = bytesPerSec;
+        this.frames = framesPerSec;
+        this.bytes = bytesPerSec;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * @return ms the caller should stop reading for, 0 if it is within its limits
+     */
+    public synchronized long acquire(int frameCount, int byteCount) {
+        long now = System.nanoTime();
+        double elapsed = (now - last) / 1e9;
+        last = now;
+
+        long pause = 0;
+        if (framesPerSec > 0) {
+            frames = Math.min(framesPerSec, frames + elapsed * framesPerSec) - frameCount;
+            if (frames < 0) pause = Math.max(pause, (long) Math.ceil(-frames * 1000 / framesPerSec));
+        }
+        if (bytesPerSec > 0) {
+            bytes = Math.min(bytesPerSec, bytes + elapsed * bytesPerSec) - byteCount;
+            if (bytes < 0) pause = Math.max(pause, (long) Math.ceil(-bytes * 1000 / bytesPerSec));
+        }
+        return pause;
+    }
+
+    /**
+     * Charges both limiters, either of which may be null
+     * @return the longer of the two pauses
+     */
+    public static long acquire(RateLimiter first, RateLimiter second, int frameCount, int byteCount) {
+        long pause = first == null ? 0 : first.acquire(frameCount, byteCount);
+        if (second != null) {
+            pause = Math.max(pause, second.acquire(frameCount, byteCount));
+        }
+        return pause;
+    }
+}
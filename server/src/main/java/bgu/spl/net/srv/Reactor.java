@@ -12,6 +12,8 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -21,24 +23,50 @@ public class Reactor<T> implements Server<T> {
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
     private Selector selector;
+    private volatile ServerSocketChannel listener;
 
     private Thread selectorThread;
     private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
 
+    private final ServerConfig config;
     private final ConnectionsImpl<T> connections;
+    private final TimingWheel timers = new TimingWheel(100, 512);
     private int connectionIdCounter = 0;
 
+    private static final long DRAIN_POLL_MS = 20;
+
     public Reactor(
             int numThreads,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, port, protocolFactory, readerFactory, ServerConfig.defaults());
+    }
+
+    public Reactor(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(config.workerThreads, port, protocolFactory, readerFactory, config);
+    }
+
+    private Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ServerConfig config) {
 
-        this.pool = new ActorThreadPool(numThreads);
+        this.config = config;
+        this.pool = new ActorThreadPool(numThreads, TimeUnit.MICROSECONDS.toNanos(config.schedulingQuantumUs));
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
         this.connections = new ConnectionsImpl<>();
+        this.connections.setWorkers(pool, numThreads);
+        this.connections.setTimers(timers);
+        this.connections.configure(config);
     }
 
     @Override
@@ -48,8 +76,10 @@ public class Reactor<T> implements Server<T> {
              ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
             this.selector = selector; 
+            this.listener = serverSock;
 
-            serverSock.bind(new InetSocketAddress(port));
+            config.configureListener(serverSock);
+            serverSock.bind(new InetSocketAddress(port), config.acceptBacklog);
             serverSock.configureBlocking(false);
             serverSock.register(selector, SelectionKey.OP_ACCEPT);
             System.out.println("Server started");
@@ -81,7 +111,32 @@ public class Reactor<T> implements Server<T> {
         }
 
         System.out.println("server closed!!!");
+        timers.stop();
         pool.shutdown();
+        connections.shutdown();
+    }
+
+    @Override
+    public void drain(long timeoutMs) {
+        ServerSocketChannel serverSock = listener;
+        if (serverSock == null) return;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        runOnSelectorThread(() -> {
+            try {
+                serverSock.close();
+            } catch (IOException ignored) {
+            }
+        });
+        connections.drain();
+        // the connections close as their last frames go out; the selector keeps writing until close()
+        try {
+            while ((connections.openConnections() > 0 || pool.backlog() > 0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(DRAIN_POLL_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
      void updateInterestedOps(SocketChannel chan, int ops) {
@@ -98,10 +153,44 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
+    /**
+     * Like {@link #updateInterestedOps(SocketChannel, int)}, but the ops are worked out on the selector
+     * thread, so updates coming from several threads cannot apply a stale value last
+     */
+    void updateInterestedOps(SocketChannel chan, IntSupplier ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (Thread.currentThread() == selectorThread) {
+            if (key != null && key.isValid()) {
+                key.interestOps(ops.getAsInt());
+            }
+        } else {
+            selectorTasks.add(() -> {
+                if (key.isValid()) {
+                    key.interestOps(ops.getAsInt());
+                }
+            });
+            selector.wakeup();
+        }
+    }
+
+    boolean isSelectorThread() {
+        return Thread.currentThread() == selectorThread;
+    }
+
+    void runOnSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    void execute(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler, task);
+    }
+
 
     private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
         SocketChannel clientChan = serverChan.accept();
         clientChan.configureBlocking(false);
+        config.configure(clientChan);
         
         // יצירת Handler עם ID ו-Connections
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
@@ -110,7 +199,9 @@ public class Reactor<T> implements Server<T> {
                 clientChan,
                 this,
                 connectionIdCounter++, 
-                connections          
+                connections,
+                timers,
+                config
         );
         
         clientChan.register(selector, SelectionKey.OP_READ, handler);
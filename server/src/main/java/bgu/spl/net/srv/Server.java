@@ -12,6 +12,13 @@ public interface Server<T> extends Closeable {
      */
     void serve();
 
+    /**
+     * Winds the server down for a restart: stops accepting connections, has every connection hand its
+     * session over and close, and waits up to {@code timeoutMs} for in-flight work and queued frames.
+     * The server keeps running until {@link #close()}, so whatever is left can still be written out.
+     */
+    void drain(long timeoutMs);
+
     /**
      *This function returns a new instance of a thread per client pattern server
      * @param port The port for the server socket
@@ -25,13 +32,25 @@ public interface Server<T> extends Closeable {
             Supplier<MessagingProtocol<T> > protocolFactory,
             Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
 
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+        return threadPerClient(ServerConfig.defaults(), port, protocolFactory, encoderDecoderFactory);
+
+    }
+
+    /**
+     * Thread per client server tuned by {@code config}
+     */
+    public static <T> Server<T> threadPerClient(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return new BaseServer<T>(config, port, protocolFactory, encoderDecoderFactory) {
             @Override
             protected void execute(BlockingConnectionHandler<T>  handler) {
                 new Thread(handler).start();
             }
         };
-
     }
 
     /**
@@ -51,4 +70,15 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * Reactor server tuned by {@code config}, with {@link ServerConfig#workerThreads} processing threads
+     */
+    public static <T> Server<T> reactor(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(config, port, protocolFactory, encoderDecoderFactory);
+    }
+
 }
@@ -0,0 +1,272 @@
+package bgu.spl.net.srv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Tuning of a server: socket options, threads, buffers and limits. Values come from a properties file,
+ * overridden by system properties of the same name, and fall back to the defaults below. A value that is
+ * not a number or out of range fails with an {@link IllegalArgumentException} naming its key.
+ */
+public class ServerConfig {
+
+    // socket options; a buffer size of 0 keeps the OS default
+    public final boolean tcpNoDelay;
+    public final boolean keepAlive;
+    public final int sendBufferSize;
+    public final int receiveBufferSize;
+    public final boolean reusePort;
+    public final int acceptBacklog;
+
+    // threads and buffers
+    public final int workerThreads;
+    // thread-per-client mode: threads that drain the outbound queues
+    public final int writerThreads;
+    public final int readBufferSize;
+    public final int maxFrameSize;
+
+    // limits; 0 means none
+    public final int maxOutboundFrames;
+    // thread-per-client mode: how long a blocking write may go without getting a frame out before the
+    // connection is dropped, so a peer that stops reading does not keep a writer thread
+    public final long writeTimeoutMs;
+    public final long idleTimeoutMs;
+    // heart-beat intervals the server offers in CONNECTED: it can send every heartbeatSendMs and wants to
+    // hear from the client every heartbeatReceiveMs
+    public final long heartbeatSendMs;
+    public final long heartbeatReceiveMs;
+    public final int parallelFanOutThreshold;
+    public final int admissionBacklog;
+    public final double connectionFramesPerSec;
+    public final double connectionBytesPerSec;
+    public final double userFramesPerSec;
+    public final double userBytesPerSec;
+    public final long resumeGraceMs;
+
+    // CPU time one turn of a connection may take on the worker pool, and login -> weight of users whose
+    // connections get a larger share; the rest weigh 1
+    public final long schedulingQuantumUs;
+    public final Map<String, Integer> schedulingWeights;
+
+    // credit of a client-ack subscription that does not ask for its own
+    public final int ackPrefetch;
+
+    // cluster mesh; a cluster port of 0 runs the server standalone
+    public final String clusterNode;
+    public final int clusterPort;
+    // id@host:port of every peer, comma separated
+    public final String clusterPeers;
+    // interface the cluster port listens on; empty takes the host of this node's own entry in the peers,
+    // or the loopback interface if it has none
+    public final String clusterBindAddress;
+    // shared by all nodes; a peer's link is read only once it proves it knows the secret
+    public final String clusterSecret;
+    // how long a node's hold on a login outlives the node's last renewal
+    public final long clusterLeaseMs;
+
+    // restarts: how long a drain waits for connections to wind down, where it leaves the sessions for the
+    // next process, and how long clients are told to wait before they reconnect
+    public final long drainTimeoutMs;
+    public final String drainSnapshotFile;
+    public final long drainReconnectDelayMs;
+
+    private ServerConfig(Properties file) {
+        Properties p = new Properties();
+        p.putAll(file);
+        p.putAll(System.getProperties());
+
+        tcpNoDelay = bool(p, "stomp.socket.tcpNoDelay", true);
+        keepAlive = bool(p, "stomp.socket.keepAlive", true);
+        sendBufferSize = integer(p, "stomp.socket.sendBuffer", 0, 0);
+        receiveBufferSize = integer(p, "stomp.socket.receiveBuffer", 0, 0);
+        reusePort = bool(p, "stomp.socket.reusePort", false);
+        acceptBacklog = integer(p, "stomp.socket.backlog", 1024, 0);
+
+        workerThreads = integer(p, "stomp.server.workerThreads", Runtime.getRuntime().availableProcessors(), 1);
+        writerThreads = integer(p, "stomp.server.writerThreads", 2 * Runtime.getRuntime().availableProcessors(), 1);
+        readBufferSize = integer(p, "stomp.server.readBufferSize", 1 << 13, 1);
+        maxFrameSize = integer(p, "stomp.server.maxFrameSize", 1 << 20, 1);
+
+        maxOutboundFrames = integer(p, "stomp.server.maxOutboundFrames", 100000, 0);
+        writeTimeoutMs = longValue(p, "stomp.server.writeTimeoutMs", 10000, 0);
+        idleTimeoutMs = longValue(p, "stomp.heartbeat.idleTimeoutMs", HeartbeatMonitor.DEFAULT_IDLE_TIMEOUT_MS, 0);
+        heartbeatSendMs = longValue(p, "stomp.heartbeat.sendMs", 10000, 0);
+        heartbeatReceiveMs = longValue(p, "stomp.heartbeat.receiveMs", 10000, 0);
+        parallelFanOutThreshold = integer(p, "stomp.fanout.parallelThreshold", 2048, 0);
+        // a negative backlog turns every CONNECT away
+        admissionBacklog = integer(p, "stomp.admission.maxBacklog", 10000, -1);
+        connectionFramesPerSec = decimal(p, "stomp.limit.connection.framesPerSec");
+        connectionBytesPerSec = decimal(p, "stomp.limit.connection.bytesPerSec");
+        userFramesPerSec = decimal(p, "stomp.limit.user.framesPerSec");
+        userBytesPerSec = decimal(p, "stomp.limit.user.bytesPerSec");
+        resumeGraceMs = longValue(p, "stomp.resume.graceMs", 30000, 0);
+        ackPrefetch = integer(p, "stomp.ack.prefetch", 100, 1);
+        schedulingQuantumUs = longValue(p, "stomp.scheduler.quantumUs", 200, 1);
+        schedulingWeights = weights(p.getProperty("stomp.scheduler.weights", ""));
+
+        clusterPort = (int) longValue(p, "stomp.cluster.port", 0, 0, 65535);
+        clusterNode = p.getProperty("stomp.cluster.node", "node-" + clusterPort).trim();
+        clusterPeers = p.getProperty("stomp.cluster.peers", "").trim();
+        clusterBindAddress = p.getProperty("stomp.cluster.bindAddress", "").trim();
+        clusterSecret = p.getProperty("stomp.cluster.secret", "");
+        // a node renews its holds three times per lease, so a shorter lease would renew every 0 ms
+        clusterLeaseMs = longValue(p, "stomp.cluster.leaseMs", 30000, 3);
+
+        drainTimeoutMs = longValue(p, "stomp.drain.timeoutMs", 10000, 0);
+        drainSnapshotFile = p.getProperty("stomp.drain.snapshotFile", "stomp-sessions.snapshot").trim();
+        drainReconnectDelayMs = longValue(p, "stomp.drain.reconnectDelayMs", 1000, 0);
+    }
+
+    /**
+     * @return the defaults, with system properties applied
+     */
+    public static ServerConfig defaults() {
+        return new ServerConfig(new Properties());
+    }
+
+    /**
+     * @param path a properties file; null or a missing file gives {@link #defaults()}
+     */
+    public static ServerConfig load(String path) throws IOException {
+        Properties file = new Properties();
+        if (path != null && new File(path).isFile()) {
+            try (InputStream in = new FileInputStream(path)) {
+                file.load(in);
+            }
+        }
+        return new ServerConfig(file);
+    }
+
+    public void configure(Socket sock) throws IOException {
+        sock.setTcpNoDelay(tcpNoDelay);
+        sock.setKeepAlive(keepAlive);
+        if (sendBufferSize > 0) sock.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize > 0) sock.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    public void configure(SocketChannel chan) throws IOException {
+        chan.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        chan.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (sendBufferSize > 0) chan.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        if (receiveBufferSize > 0) chan.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    }
+
+    /**
+     * Options of a listening socket; must run before it is bound
+     */
+    public void configureListener(ServerSocket sock) throws IOException {
+        sock.setReuseAddress(true);
+        // accepted sockets inherit the receive buffer, and windows above 64k must be set before listen
+        if (receiveBufferSize > 0) sock.setReceiveBufferSize(receiveBufferSize);
+        if (reusePort) setReusePort(sock, ServerSocket.class);
+    }
+
+    /**
+     * Options of a listening channel; must run before it is bound
+     */
+    public void configureListener(NetworkChannel chan) throws IOException {
+        chan.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (receiveBufferSize > 0) chan.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        if (reusePort) setReusePort(chan, NetworkChannel.class);
+    }
+
+    /**
+     * @return the scheduling weight of the user's connections
+     */
+    public int weightOf(String login) {
+        return schedulingWeights.getOrDefault(login, 1);
+    }
+
+    public RateLimiter connectionLimiter() {
+        return limiter(connectionFramesPerSec, connectionBytesPerSec);
+    }
+
+    public RateLimiter userLimiter() {
+        return limiter(userFramesPerSec, userBytesPerSec);
+    }
+
+    private static RateLimiter limiter(double frames, double bytes) {
+        return frames > 0 || bytes > 0 ? new RateLimiter(frames, bytes) : null;
+    }
+
+    /**
+     * SO_REUSEPORT only exists from Java 9 on, so it is looked up by name; older runtimes skip it
+     */
+    private static void setReusePort(Object target, Class<?> api) {
+        try {
+            SocketOption<?> option = (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            Method setOption = api.getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(target, option, Boolean.TRUE);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            System.err.println("SO_REUSEPORT not available: " + ex);
+        }
+    }
+
+    /**
+     * @param spec login:weight pairs, comma separated
+     */
+    private static Map<String, Integer> weights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String pair : spec.split(",")) {
+            if (pair.trim().isEmpty()) continue;
+            int colon = pair.lastIndexOf(':');
+            if (colon <= 0) throw new NumberFormatException("expected login:weight, got '" + pair.trim() + "'");
+            weights.put(pair.substring(0, colon).trim(), Math.max(1, Integer.parseInt(pair.substring(colon + 1).trim())));
+        }
+        return Collections.unmodifiableMap(weights);
+    }
+
+    private static boolean bool(Properties p, String key, boolean def) {
+        String v = p.getProperty(key);
+        return v == null ? def : Boolean.parseBoolean(v.trim());
+    }
+
+    private static int integer(Properties p, String key, int def, int min) {
+        return (int) longValue(p, key, def, min, Integer.MAX_VALUE);
+    }
+
+    private static long longValue(Properties p, String key, long def, long min) {
+        return longValue(p, key, def, min, Long.MAX_VALUE);
+    }
+
+    private static long longValue(Properties p, String key, long def, long min, long max) {
+        String v = p.getProperty(key);
+        long value;
+        try {
+            value = v == null ? def : Long.parseLong(v.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " must be a whole number, got '" + v.trim() + "'");
+        }
+        if (value < min) throw new IllegalArgumentException(key + " must be at least " + min + ", got " + value);
+        if (value > max) throw new IllegalArgumentException(key + " must be at most " + max + ", got " + value);
+        return value;
+    }
+
+    /**
+     * @return the value, at least 0; unset is 0
+     */
+    private static double decimal(Properties p, String key) {
+        String v = p.getProperty(key);
+        double value;
+        try {
+            value = v == null ? 0 : Double.parseDouble(v.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " must be a number, got '" + v.trim() + "'");
+        }
+        if (!(value >= 0)) throw new IllegalArgumentException(key + " must be at least 0, got " + value);
+        return value;
+    }
+}
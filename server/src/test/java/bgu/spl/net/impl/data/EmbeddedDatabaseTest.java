@@ -0,0 +1,171 @@
+package bgu.spl.net.impl.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EmbeddedDatabaseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String dir() {
+        return folder.getRoot().getPath();
+    }
+
+    private File journal() {
+        return new File(folder.getRoot(), "stomp_server.journal");
+    }
+
+    @Test
+    public void replaysJournalOnRestart() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        assertTrue(db.registerUser("alice", "pw\twith\ttabs").get());
+        assertFalse(db.registerUser("alice", "other").get());
+        db.logLogin("alice").get();
+        db.logLogout("alice").get();
+        db.logLogin("alice").get();
+
+        EmbeddedDatabase reopened = new EmbeddedDatabase(dir());
+        assertEquals("pw\twith\ttabs", reopened.getPassword("alice").get());
+        assertNull(reopened.getPassword("bob").get());
+        assertEquals(2, reopened.sessionCount("alice"));
+    }
+
+    @Test
+    public void restartAfterSnapshotKeepsEverything() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        db.registerUser("alice", "pw").get();
+        db.logLogin("alice").get();
+        assertTrue(db.snapshot().get());
+        db.logLogin("alice").get();
+
+        EmbeddedDatabase reopened = new EmbeddedDatabase(dir());
+        assertEquals("pw", reopened.getPassword("alice").get());
+        assertEquals(2, reopened.sessionCount("alice"));
+    }
+
+    @Test
+    public void crashBeforeJournalRestartDoesNotReplayTwice() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        db.registerUser("alice", "pw").get();
+        db.logLogin("alice").get();
+        db.logLogin("alice").get();
+        File before = folder.newFile("journal.before");
+        Files.copy(journal().toPath(), before.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertTrue(db.snapshot().get());
+        // the snapshot is in place but the old journal was never truncated
+        Files.copy(before.toPath(), journal().toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        EmbeddedDatabase reopened = new EmbeddedDatabase(dir());
+        assertEquals(2, reopened.sessionCount("alice"));
+
+        reopened.logLogin("alice").get();
+        assertEquals(3, new EmbeddedDatabase(dir()).sessionCount("alice"));
+    }
+
+    @Test
+    public void crashBeforeSnapshotIsWrittenKeepsTheMovedJournal() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        db.registerUser("alice", "pw").get();
+        db.logLogin("alice").get();
+        assertTrue(db.snapshot().get());
+        db.logLogin("alice").get();
+        // as if the journal had just been moved aside and the snapshot not yet replaced
+        File previous = new File(folder.getRoot(), "stomp_server.journal.prev");
+        Files.write(previous.toPath(), "G\t1\nI\talice\t2024-01-01 10:00:00\n".getBytes("UTF-8"));
+        Files.write(journal().toPath(), "G\t2\nI\talice\t2024-01-01 11:00:00\n".getBytes("UTF-8"),
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        EmbeddedDatabase reopened = new EmbeddedDatabase(dir());
+        assertEquals(3, reopened.sessionCount("alice"));
+        assertFalse(previous.exists());
+        assertEquals(3, new EmbeddedDatabase(dir()).sessionCount("alice"));
+    }
+
+    @Test
+    public void concurrentWritesAllReachTheJournal() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        List<CompletableFuture<Boolean>> logins = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    CompletableFuture<Boolean> login = db.logLogin("alice");
+                    synchronized (logins) {
+                        logins.add(login);
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        db.flush().get();
+
+        for (CompletableFuture<Boolean> login : logins) {
+            assertTrue(login.getNow(false));
+        }
+        assertEquals(1600, db.sessionCount("alice"));
+        assertEquals(1600, new EmbeddedDatabase(dir()).sessionCount("alice"));
+    }
+
+    @Test
+    public void tornLastRecordIsDropped() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        db.registerUser("alice", "pw").get();
+        db.trackFileUpload("alice", "a.json", "/game").get();
+        long whole = journal().length();
+        // a crash in the middle of appending the next record
+        Files.write(journal().toPath(), "F\talice\tb.json".getBytes("UTF-8"), StandardOpenOption.APPEND);
+
+        EmbeddedDatabase reopened = new EmbeddedDatabase(dir());
+        assertEquals("pw", reopened.getPassword("alice").get());
+        assertEquals(whole, journal().length());
+        reopened.logLogin("alice").get();
+        assertEquals(1, new EmbeddedDatabase(dir()).sessionCount("alice"));
+    }
+
+    @Test
+    public void shortLastRecordIsDropped() throws Exception {
+        Files.write(journal().toPath(), "U\talice\tpw\nF\talice\tb.json\n".getBytes("UTF-8"));
+
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        assertEquals("pw", db.getPassword("alice").get());
+        assertEquals("U\talice\tpw\n", new String(Files.readAllBytes(journal().toPath()), "UTF-8"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void badRecordInsideTheJournalFailsFast() throws Exception {
+        Files.write(journal().toPath(), "U\talice\tpw\\x\nI\talice\t2024-01-01 10:00:00\n".getBytes("UTF-8"));
+        new EmbeddedDatabase(dir());
+    }
+
+    @Test
+    public void readsJournalWrittenBeforeGenerations() throws Exception {
+        Files.write(journal().toPath(), "U\talice\tpw\nI\talice\t2024-01-01 10:00:00\n".getBytes("UTF-8"));
+
+        EmbeddedDatabase db = new EmbeddedDatabase(dir());
+        assertEquals("pw", db.getPassword("alice").get());
+        assertEquals(1, db.sessionCount("alice"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unusableDirectoryFailsFast() throws IOException {
+        File file = folder.newFile("not-a-dir");
+        new EmbeddedDatabase(file.getPath());
+    }
+}
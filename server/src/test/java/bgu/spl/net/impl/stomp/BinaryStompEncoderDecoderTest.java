@@ -0,0 +1,214 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryStompEncoderDecoderTest {
+
+    /**
+     * @return the frames decoded, parsed ones written out as text
+     */
+    private static List<String> decodeAll(BinaryStompEncoderDecoder codec, byte[] bytes) {
+        List<String> frames = new ArrayList<>();
+        for (byte b : bytes) {
+            String frame = codec.decodeNextByte(b);
+            if (frame == FrameParser.PARSED) {
+                frames.add(codec.frame().toString());
+            } else if (frame != null) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    private static String roundTrip(String frame) {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder();
+        List<String> frames = decodeAll(codec, codec.encode(frame));
+        assertEquals(1, frames.size());
+        return frames.get(0);
+    }
+
+    private static byte[] varint(int value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsKnownAndUnknownHeaders() {
+        String frame = "SEND\ndestination:/games/a\nx-custom:42\nreceipt:7\n\nhello";
+        assertEquals(frame, roundTrip(frame));
+    }
+
+    @Test
+    public void roundTripsFrameWithoutBody() {
+        assertEquals("DISCONNECT\nreceipt:1\n\n", roundTrip("DISCONNECT\nreceipt:1\n\n"));
+    }
+
+    @Test
+    public void roundTripsNonAsciiHeadersAndBody() {
+        String frame = "MESSAGE\ndestination:/שלום\nsubscription:1\nmessage-id:3\n\nגול! ⚽";
+        assertEquals(frame, roundTrip(frame));
+    }
+
+    @Test
+    public void roundTripsBodyContainingNul() {
+        String frame = "SEND\ndestination:/a\n\nbefore\u0000after";
+        assertEquals(frame, roundTrip(frame));
+    }
+
+    @Test
+    public void roundTripsLargeFrame() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        String frame = "SEND\ndestination:/a\n\n" + body;
+        assertEquals(frame, roundTrip(frame));
+    }
+
+    @Test
+    public void decodesStraightIntoTheParserWithSharedConstants() {
+        FrameParser parser = new FrameParser();
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder(1 << 20, parser);
+        byte[] encoded = codec.encode("SUBSCRIBE\ndestination:/a\nid:1\nack: client \nx-custom:v\n\n");
+        String result = null;
+        for (byte b : encoded) {
+            result = codec.decodeNextByte(b);
+        }
+
+        assertSame(FrameParser.PARSED, result);
+        assertSame("SUBSCRIBE", parser.command());
+        assertSame("client", parser.headers().get("ack"));
+        assertEquals("/a", parser.headers().get("destination"));
+        assertEquals("v", parser.headers().get("x-custom"));
+        assertEquals("", parser.body());
+    }
+
+    @Test
+    public void copyOutlivesTheNextFrame() {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder();
+        decodeAll(codec, codec.encode("SEND\ndestination:/a\n\nfirst"));
+        FrameParser first = codec.frame().copy();
+        decodeAll(codec, codec.encode("ACK\nid:3\n\n"));
+
+        assertEquals("SEND", first.command());
+        assertEquals("/a", first.headers().get("destination"));
+        assertEquals("first", first.body());
+        assertTrue(codec.frame().headers().containsKey("id"));
+    }
+
+    @Test
+    public void usesOneByteIdsForWellKnownNames() {
+        byte[] encoded = new BinaryStompEncoderDecoder().encode("SEND\nreceipt:1\n\n");
+        // length, command, header count, header id, value length, value
+        assertArrayEquals(new byte[]{5, 3, 1, 13, 1, '1'}, encoded);
+    }
+
+    @Test
+    public void zeroLengthFrameIsAHeartbeat() {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder();
+        assertNull(codec.decodeNextByte((byte) 0));
+        assertArrayEquals(new byte[]{0}, codec.heartbeat());
+    }
+
+    @Test
+    public void skipsOversizedFrameWithoutBufferingIt() {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder(16);
+        byte[] oversized = concat(varint(40), new byte[40]);
+        byte[] next = codec.encode("DISCONNECT\n\n");
+        List<String> frames = decodeAll(codec, concat(oversized, next));
+
+        assertEquals(2, frames.size());
+        assertSame(StompEncoderDecoder.FRAME_TOO_LARGE, frames.get(0));
+        assertEquals("DISCONNECT\n\n", frames.get(1));
+    }
+
+    @Test
+    public void hugeLengthPrefixIsRejectedBeforeAllocating() {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder(1 << 20);
+        // a length of 2^28 - 1: the decoder must skip, not allocate 256MB
+        for (byte b : varint((1 << 28) - 1)) {
+            assertNull(codec.decodeNextByte(b));
+        }
+        assertNull(codec.decodeNextByte((byte) 1));
+    }
+
+    @Test
+    public void overlongVarintIsMalformed() {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder();
+        String result = null;
+        for (int i = 0; i < 6 && result == null; i++) {
+            result = codec.decodeNextByte((byte) 0xFF);
+        }
+        assertSame(StompEncoderDecoder.MALFORMED_FRAME, result);
+    }
+
+    @Test
+    public void unknownIdsAndTruncatedStringsAreMalformed() {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder();
+        byte[] unknownCommand = {1, 99};
+        byte[] unknownHeader = {3, 3, 1, 120};
+        // a value that claims 9 bytes and has 1
+        byte[] truncated = {5, 3, 1, 13, 9, 'x'};
+        List<String> frames = decodeAll(codec, concat(unknownCommand, unknownHeader, truncated,
+                codec.encode("DISCONNECT\n\n")));
+
+        assertEquals(4, frames.size());
+        assertSame(StompEncoderDecoder.MALFORMED_FRAME, frames.get(0));
+        assertSame(StompEncoderDecoder.MALFORMED_FRAME, frames.get(1));
+        assertSame(StompEncoderDecoder.MALFORMED_FRAME, frames.get(2));
+        assertEquals("DISCONNECT\n\n", frames.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToEncodeUnknownCommand() {
+        new BinaryStompEncoderDecoder().encode("HELLO\n\n");
+    }
+
+    @Test
+    public void negotiationPicksFramingFromFirstBytes() {
+        NegotiatingEncoderDecoder binary = new NegotiatingEncoderDecoder();
+        FrameParser parser = new FrameParser();
+        binary.parseInto(parser);
+        byte[] frame = new BinaryStompEncoderDecoder().encode("DISCONNECT\nreceipt:9\n\n");
+        List<String> frames = new ArrayList<>();
+        for (byte b : concat(BinaryStompEncoderDecoder.PREAMBLE, frame)) {
+            String f = binary.decodeNextByte(b);
+            if (f != null) frames.add(f);
+        }
+        assertSame(FrameParser.PARSED, frames.get(0));
+        assertEquals("DISCONNECT", parser.command());
+        assertEquals("9", parser.headers().get("receipt"));
+        assertArrayEquals(frame, binary.encode("DISCONNECT\nreceipt:9\n\n"));
+
+        NegotiatingEncoderDecoder text = new NegotiatingEncoderDecoder();
+        String decoded = null;
+        for (byte b : "DISCONNECT\n\n\u0000".getBytes()) {
+            String f = text.decodeNextByte(b);
+            if (f != null) decoded = f;
+        }
+        assertEquals("DISCONNECT\n\n", decoded);
+    }
+}
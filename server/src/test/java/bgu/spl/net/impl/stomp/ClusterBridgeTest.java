@@ -0,0 +1,185 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.TimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The listening side of node "a"; the test plays its peer "b"
+ */
+public class ClusterBridgeTest {
+
+    private static final String SECRET = "test-secret";
+
+    private final TimingWheel timers = new TimingWheel(100, 64);
+    private ConnectionsImpl<String> connections;
+    private int port;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static ServerConfig config(Properties p) throws IOException {
+        File file = File.createTempFile("cluster-test", ".properties");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            p.store(out, null);
+        }
+        return ServerConfig.load(file.getPath());
+    }
+
+    private Properties node(int clusterPort) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("stomp.cluster.node", "a");
+        p.setProperty("stomp.cluster.port", Integer.toString(clusterPort));
+        // b is never listening; only its inbound link is exercised
+        p.setProperty("stomp.cluster.peers", "a@127.0.0.1:" + clusterPort + ",b@127.0.0.1:" + freePort());
+        p.setProperty("stomp.cluster.secret", SECRET);
+        p.setProperty("stomp.drain.snapshotFile", new File(System.getProperty("java.io.tmpdir"), "no-such-snapshot").getPath());
+        return p;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        port = freePort();
+        connections = new ConnectionsImpl<>();
+        connections.setTimers(timers);
+        connections.configure(config(node(port)));
+    }
+
+    @After
+    public void tearDown() {
+        connections.shutdown();
+        timers.stop();
+    }
+
+    private static String proof(String secret, String nonce, String node, String incarnation) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return Base64.getEncoder().encodeToString(
+                mac.doFinal((nonce + '\n' + node + '\n' + incarnation).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String readFrame(InputStream in) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            frame.write(b);
+        }
+        return new String(frame.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Answers the challenge as {@code node}, signing with {@code secret}
+     *
+     * @return true if node "a" keeps the link open afterwards
+     */
+    private boolean introduce(String node, String secret) throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            sock.setSoTimeout(3000);
+            InputStream in = sock.getInputStream();
+            String challenge = readFrame(in);
+            assertTrue(challenge, challenge.startsWith("CHALLENGE\n"));
+            String nonce = challenge.substring(challenge.indexOf("nonce:") + 6, challenge.indexOf('\n', challenge.indexOf("nonce:")));
+
+            String frame = "NODE\nnode:" + node + "\nincarnation:1\nproof:" + proof(secret, nonce, node, "1") + "\n\n\0";
+            sock.getOutputStream().write(frame.getBytes(StandardCharsets.UTF_8));
+            sock.getOutputStream().flush();
+            return stillOpen(sock, 3000);
+        }
+    }
+
+    private static boolean stillOpen(Socket sock, int ms) throws IOException {
+        sock.setSoTimeout(ms);
+        try {
+            return sock.getInputStream().read() >= 0;
+        } catch (SocketTimeoutException ex) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Test
+    public void acceptsPeerThatKnowsTheSecret() throws Exception {
+        assertTrue(introduce("b", SECRET));
+    }
+
+    @Test
+    public void dropsPeerWithWrongSecret() throws Exception {
+        assertFalse(introduce("b", "guess"));
+    }
+
+    @Test
+    public void dropsNodeThatIsNotAConfiguredPeer() throws Exception {
+        assertFalse(introduce("mallory", SECRET));
+    }
+
+    @Test
+    public void dropsLinkThatSendsFramesBeforeIntroducingItself() throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            readFrame(sock.getInputStream());
+            sock.getOutputStream().write("RELEASE\nlogin:someone\n\n\0".getBytes(StandardCharsets.UTF_8));
+            assertFalse(stillOpen(sock, 3000));
+        }
+    }
+
+    @Test
+    public void dropsLinkThatStaysSilent() throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            readFrame(sock.getInputStream());
+            assertFalse(stillOpen(sock, 5000));
+        }
+    }
+
+    @Test
+    public void listensOnTheConfiguredInterfaceOnly() throws Exception {
+        InetAddress other = null;
+        for (InetAddress address : InetAddress.getAllByName(InetAddress.getLocalHost().getHostName())) {
+            if (!address.isLoopbackAddress()) other = address;
+        }
+        if (other == null) return;
+        try (Socket ignored = new Socket(other, port)) {
+            throw new AssertionError("cluster port reachable on " + other);
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void refusesToJoinWithoutASecret() throws Exception {
+        Properties p = node(freePort());
+        p.remove("stomp.cluster.secret");
+        ConnectionsImpl<String> unsafe = new ConnectionsImpl<>();
+        unsafe.setTimers(timers);
+        try {
+            unsafe.configure(config(p));
+            throw new AssertionError("joined without a secret");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("stomp.cluster.secret must be set to join a cluster", expected.getMessage());
+        }
+    }
+}
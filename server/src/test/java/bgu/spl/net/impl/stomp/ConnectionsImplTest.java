@@ -0,0 +1,72 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ConnectionsImplTest {
+
+    private final ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+
+    private void report(String channel, int time) {
+        connections.recordReport(channel, GameState.parse(
+                "team a : usa\nteam b : mexico\nevent name : kickoff\ntime : " + time + "\n"));
+    }
+
+    @Test
+    public void gameStateOutlivesAllButTheLastSubscriber() {
+        connections.subscribe("/usa_mexico", 1, "1", null, false);
+        connections.subscribe("/usa_mexico", 2, "1", null, false);
+        report("/usa_mexico", 0);
+
+        connections.unsubscribe(1, "1");
+        assertNotNull(connections.snapshot("/usa_mexico"));
+        connections.unsubscribeAll(2);
+        assertNull(connections.snapshot("/usa_mexico"));
+    }
+
+    @Test
+    public void wildcardSubscriberKeepsMatchingGamesAlive() {
+        connections.subscribe("/games/#", 1, "1", null, false);
+        connections.subscribe("/games/a", 2, "1", null, false);
+        connections.subscribe("/other", 3, "1", null, false);
+        report("/games/a", 0);
+        report("/games/b", 0);
+        report("/other", 0);
+
+        connections.unsubscribe(2, "1");
+        assertNotNull(connections.snapshot("/games/a"));
+        connections.unsubscribe(1, "1");
+        assertNull(connections.snapshot("/games/a"));
+        assertNull(connections.snapshot("/games/b"));
+        assertNotNull(connections.snapshot("/other"));
+    }
+
+    @Test
+    public void consumerGroupsOnlyShareLocalPublishes() {
+        connections.subscribe("/g", 1, "1", null, false);
+        connections.subscribe("/g", 2, "1", null, false, Subscription.ACK_AUTO, 0, "workers", null);
+        connections.subscribe("/g", 3, "1", null, false, Subscription.ACK_AUTO, 0, "workers", null);
+        MessageBody payload = new MessageBody(Collections.<String, String>emptyMap(), "hi");
+
+        List<Subscription> local = connections.recipients("/g", payload, true);
+        assertEquals(2, local.size());
+        assertEquals(1, local.get(0).connectionId);
+        assertNotNull(local.get(1).group);
+
+        List<Subscription> remote = connections.recipients("/g", payload, false);
+        assertEquals(1, remote.size());
+        assertEquals(1, remote.get(0).connectionId);
+    }
+
+    @Test
+    public void reportOnUnwatchedChannelIsNotKept() {
+        report("/nobody", 0);
+        assertNull(connections.snapshot("/nobody"));
+    }
+}
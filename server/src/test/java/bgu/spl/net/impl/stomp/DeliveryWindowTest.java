@@ -0,0 +1,126 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryWindowTest {
+
+    private final List<String> sent = new ArrayList<>();
+
+    private void offer(DeliveryWindow window, int... ids) {
+        for (int id : ids) {
+            assertTrue(window.offer(id, "m" + id, sent::add));
+        }
+    }
+
+    @Test
+    public void holdsMessagesBeyondThePrefetch() {
+        DeliveryWindow window = new DeliveryWindow(2, 0);
+        offer(window, 1, 2, 3, 4);
+
+        assertEquals(Arrays.asList("m1", "m2"), sent);
+        assertEquals(4, window.backlog());
+    }
+
+    @Test
+    public void individualAckFreesOneSlot() {
+        DeliveryWindow window = new DeliveryWindow(2, 0);
+        offer(window, 1, 2, 3, 4);
+
+        assertTrue(window.settle(2, false, sent::add));
+        assertEquals(Arrays.asList("m1", "m2", "m3"), sent);
+        assertEquals(3, window.backlog());
+    }
+
+    @Test
+    public void cumulativeAckSettlesEverythingUpToTheMessage() {
+        DeliveryWindow window = new DeliveryWindow(3, 0);
+        offer(window, 1, 2, 3, 4, 5, 6);
+
+        assertTrue(window.settle(2, true, sent::add));
+        assertEquals(Arrays.asList("m1", "m2", "m3", "m4", "m5"), sent);
+        // 1 and 2 are settled, so acking them again is rejected
+        assertFalse(window.settle(1, false, sent::add));
+        assertEquals(4, window.backlog());
+    }
+
+    @Test
+    public void keepsDeliveryOrderAcrossWrapAndGrowth() {
+        DeliveryWindow window = new DeliveryWindow(40, 0);
+        for (int id = 1; id <= 30; id++) {
+            offer(window, id);
+        }
+        // wraps the ring: settle the oldest ten, deliver ten more, then one out of order in the middle
+        assertTrue(window.settle(10, true, sent::add));
+        for (int id = 31; id <= 40; id++) {
+            offer(window, id);
+        }
+        assertTrue(window.settle(20, false, sent::add));
+        assertFalse(window.settle(20, false, sent::add));
+        assertFalse(window.settle(5, false, sent::add));
+        assertEquals(29, window.backlog());
+
+        // a cumulative ack past the removed id settles everything before it, and nothing after
+        assertTrue(window.settle(25, true, sent::add));
+        assertEquals(15, window.backlog());
+        assertFalse(window.settle(21, false, sent::add));
+        assertTrue(window.settle(26, false, sent::add));
+        assertTrue(window.settle(40, true, sent::add));
+        assertEquals(0, window.backlog());
+    }
+
+    @Test
+    public void unknownMessageIsNotSettled() {
+        DeliveryWindow window = new DeliveryWindow(2, 0);
+        offer(window, 1, 2, 3);
+
+        assertFalse(window.settle(3, false, sent::add));
+        assertFalse(window.settle(99, true, sent::add));
+        assertEquals(3, window.backlog());
+    }
+
+    @Test
+    public void refusesMessagesPastTheWaitingLimit() {
+        DeliveryWindow window = new DeliveryWindow(1, 2);
+        offer(window, 1, 2, 3);
+
+        assertFalse(window.offer(4, "m4", sent::add));
+        assertEquals(3, window.backlog());
+    }
+
+    @Test
+    public void deliversInOfferOrderUnderConcurrentAcks() throws InterruptedException {
+        DeliveryWindow window = new DeliveryWindow(4, 0);
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+        int total = 20000;
+        Thread publisher = new Thread(() -> {
+            for (int id = 1; id <= total; id++) {
+                int msg = id;
+                window.offer(msg, "m" + msg, f -> delivered.add(msg));
+            }
+        });
+        publisher.start();
+        int acked = 0;
+        while (acked < total) {
+            if (delivered.size() > acked && window.settle(delivered.get(acked), false, f -> delivered.add(Integer.parseInt(f.substring(1))))) {
+                acked++;
+            } else {
+                Thread.yield();
+            }
+        }
+        publisher.join();
+
+        for (int i = 0; i < total; i++) {
+            assertEquals(i + 1, (int) delivered.get(i));
+        }
+        assertEquals(0, window.backlog());
+    }
+}
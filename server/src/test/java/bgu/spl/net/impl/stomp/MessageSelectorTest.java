@@ -0,0 +1,131 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageSelectorTest {
+
+    private static Map<String, String> props(String... pairs) {
+        Map<String, String> props = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            props.put(pairs[i], pairs[i + 1]);
+        }
+        return props;
+    }
+
+    private static boolean matches(String selector, String... pairs) {
+        return MessageSelector.compile(selector).matches(props(pairs));
+    }
+
+    @Test
+    public void comparesStringsAndNumbers() {
+        assertTrue(matches("team = 'Germany'", "team", "Germany"));
+        assertFalse(matches("team = 'Germany'", "team", "Japan"));
+        assertTrue(matches("time > 45", "time", "90"));
+        // numerically, not as text
+        assertTrue(matches("time < 100", "time", "9"));
+        assertTrue(matches("time <> 3", "time", "4"));
+        assertTrue(matches("time != 3", "time", "4"));
+        assertTrue(matches("time >= 3 AND time <= 3", "time", "3"));
+    }
+
+    @Test
+    public void missingPropertyIsUnknown() {
+        assertFalse(matches("team = 'Germany'"));
+        // NOT unknown is still unknown
+        assertFalse(matches("NOT team = 'Germany'"));
+        assertTrue(matches("team = 'Germany' OR time > 1", "time", "2"));
+        assertFalse(matches("team = 'Germany' AND time > 1", "time", "2"));
+        assertTrue(matches("team IS NULL"));
+        assertTrue(matches("time IS NOT NULL", "time", "2"));
+    }
+
+    @Test
+    public void handlesInAndParentheses() {
+        assertTrue(matches("event IN ('goal', 'penalty')", "event", "penalty"));
+        assertFalse(matches("event NOT IN ('goal', 'penalty')", "event", "goal"));
+        assertTrue(matches("(a = 1 OR b = 1) AND NOT c = 1", "a", "1", "c", "2"));
+        assertTrue(matches("name = 'it''s'", "name", "it's"));
+    }
+
+    @Test
+    public void likeMatchesWildcards() {
+        assertTrue(matches("e LIKE 'goal%'", "e", "goal!!"));
+        assertTrue(matches("e LIKE '%goal'", "e", "own goal"));
+        assertTrue(matches("e LIKE 'g_al'", "e", "goal"));
+        assertFalse(matches("e LIKE 'g_al'", "e", "gooal"));
+        assertTrue(matches("e LIKE '%'", "e", ""));
+        assertTrue(matches("e LIKE 'a%b%c'", "e", "axxbyyc"));
+        assertFalse(matches("e LIKE 'a%b%c'", "e", "axxcyyb"));
+        assertFalse(matches("e LIKE 'ab%ba'", "e", "aba"));
+        assertTrue(matches("e NOT LIKE 'x%'", "e", "goal"));
+        assertTrue(matches("e LIKE 'a.b'", "e", "a.b"));
+        assertFalse(matches("e LIKE 'a.b'", "e", "axb"));
+    }
+
+    @Test
+    public void likeAgreesWithRegexOnRandomInput() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String like = random(random, "ab%_", random.nextInt(8));
+            String value = random(random, "abc", random.nextInt(10));
+            String regex = like.replace("%", ".*").replace("_", ".");
+            assertEquals(like + " ~ " + value, Pattern.matches(regex, value),
+                    new MessageSelector.LikePattern(like).matches(value));
+        }
+    }
+
+    private static String random(Random random, String alphabet, int length) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return s.toString();
+    }
+
+    @Test(timeout = 2000)
+    public void likeDoesNotBacktrack() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            value.append('a');
+        }
+        MessageSelector selector = MessageSelector.compile("x LIKE '%a%a%a%a%a%a%a%a%a%a%a%a%b'");
+        for (int i = 0; i < 100; i++) {
+            assertFalse(selector.matches(props("x", value.toString())));
+        }
+    }
+
+    @Test
+    public void rejectsOverlongSelectors() {
+        StringBuilder selector = new StringBuilder("a = 1");
+        while (selector.length() <= MessageSelector.MAX_LENGTH) {
+            selector.append(" OR a = 1");
+        }
+        try {
+            MessageSelector.compile(selector.toString());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsMalformedSelectors() {
+        String[] bad = {"a = ", "a LIKE", "(a = 1", "a ~ 1", "a = 1 b", "a = 'open", "= 1", "a NOT = 1", "a = b"};
+        for (String selector : bad) {
+            try {
+                MessageSelector.compile(selector);
+                fail(selector);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.TimingWheel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Node "a" with peers "b" and "c" that are down, so "a" owns every login and frames are fed to it directly
+ */
+public class SessionRegistryTest {
+
+    private final TimingWheel timers = new TimingWheel(100, 64);
+    private final SessionRegistry registry = new SessionRegistry("a", Arrays.asList("b", "c"), 60000, bridge(), timers);
+
+    private ClusterBridge bridge() {
+        try {
+            File file = File.createTempFile("registry-test", ".properties");
+            file.deleteOnExit();
+            Properties p = new Properties();
+            p.setProperty("stomp.cluster.node", "a");
+            p.setProperty("stomp.cluster.secret", "test-secret");
+            try (OutputStream out = new FileOutputStream(file)) {
+                p.store(out, null);
+            }
+            ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+            connections.setTimers(timers);
+            return new ClusterBridge(ServerConfig.load(file.getPath()), connections);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        timers.stop();
+    }
+
+    private static Map<String, String> login(String login) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("login", login);
+        headers.put("request-id", "1");
+        return headers;
+    }
+
+    @Test
+    public void peerLeaseBlocksLocalLogin() throws Exception {
+        registry.handle("b", "LEASE", login("alice"), "");
+
+        assertFalse(registry.acquire("alice").get());
+    }
+
+    @Test
+    public void peerCanOnlyReleaseItsOwnLease() throws Exception {
+        registry.handle("b", "LEASE", login("alice"), "");
+
+        registry.handle("c", "RELEASE", login("alice"), "");
+        assertFalse(registry.acquire("alice").get());
+
+        registry.handle("b", "RELEASE", login("alice"), "");
+        assertTrue(registry.acquire("alice").get());
+    }
+
+    @Test
+    public void renewalCannotTakeALoginHeldElsewhere() throws Exception {
+        assertTrue(registry.acquire("bob").get());
+
+        registry.handle("c", "RENEW", Collections.<String, String>emptyMap(), "bob\ncarol\n");
+        // bob stays with a; carol was free, so c may hold it
+        registry.handle("c", "RELEASE", login("bob"), "");
+        registry.release("bob");
+        assertTrue(registry.acquire("bob").get());
+        assertFalse(registry.acquire("carol").get());
+    }
+}
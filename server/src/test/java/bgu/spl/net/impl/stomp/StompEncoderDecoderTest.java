@@ -0,0 +1,109 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class StompEncoderDecoderTest {
+
+    private static List<String> decodeAll(StompEncoderDecoder codec, String input) {
+        List<String> frames = new ArrayList<>();
+        for (byte b : input.getBytes(StandardCharsets.UTF_8)) {
+            String frame = codec.decodeNextByte(b);
+            if (frame != null) frames.add(frame);
+        }
+        return frames;
+    }
+
+    @Test
+    public void splitsFramesAtNul() {
+        List<String> frames = decodeAll(new StompEncoderDecoder(),
+                "SEND\ndestination:/a\n\none\u0000SEND\ndestination:/b\n\ntwo\u0000");
+
+        assertEquals(2, frames.size());
+        assertEquals("SEND\ndestination:/a\n\none", frames.get(0));
+        assertEquals("SEND\ndestination:/b\n\ntwo", frames.get(1));
+    }
+
+    @Test
+    public void skipsHeartbeatsBetweenFrames() {
+        List<String> frames = decodeAll(new StompEncoderDecoder(), "\n\r\n\nDISCONNECT\n\n\u0000\n");
+
+        assertEquals(1, frames.size());
+        assertEquals("DISCONNECT\n\n", frames.get(0));
+    }
+
+    @Test
+    public void readsBodyByContentLength() {
+        String body = "a\u0000b";
+        List<String> frames = decodeAll(new StompEncoderDecoder(),
+                "SEND\ndestination:/a\ncontent-length:3\n\n" + body + "\u0000DISCONNECT\n\n\u0000");
+
+        assertEquals(2, frames.size());
+        assertEquals("SEND\ndestination:/a\ncontent-length:3\n\n" + body, frames.get(0));
+        assertEquals("DISCONNECT\n\n", frames.get(1));
+    }
+
+    @Test
+    public void decodesMultiByteCharacters() {
+        List<String> frames = decodeAll(new StompEncoderDecoder(), "SEND\ndestination:/שלום\n\nגול\u0000");
+
+        assertEquals("SEND\ndestination:/שלום\n\nגול", frames.get(0));
+    }
+
+    @Test
+    public void reportsOversizedFrameAndRecovers() {
+        StompEncoderDecoder codec = new StompEncoderDecoder(64);
+        StringBuilder big = new StringBuilder("SEND\ndestination:/a\n\n");
+        for (int i = 0; i < 200; i++) {
+            big.append('x');
+        }
+        List<String> frames = decodeAll(codec, big + "\u0000DISCONNECT\n\n\u0000");
+
+        assertEquals(2, frames.size());
+        assertSame(StompEncoderDecoder.FRAME_TOO_LARGE, frames.get(0));
+        assertEquals("DISCONNECT\n\n", frames.get(1));
+    }
+
+    @Test
+    public void skipsBodyOfOversizedContentLength() {
+        StompEncoderDecoder codec = new StompEncoderDecoder(64);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            // NULs inside a counted body must not end the skipped frame early
+            body.append(i % 10 == 0 ? '\u0000' : 'x');
+        }
+        List<String> frames = decodeAll(codec,
+                "SEND\ncontent-length:100\n\n" + body + "\u0000DISCONNECT\n\n\u0000");
+
+        assertEquals(2, frames.size());
+        assertSame(StompEncoderDecoder.FRAME_TOO_LARGE, frames.get(0));
+        assertEquals("DISCONNECT\n\n", frames.get(1));
+    }
+
+    @Test
+    public void badContentLengthIsMalformed() {
+        List<String> frames = decodeAll(new StompEncoderDecoder(),
+                "SEND\ncontent-length:lots\n\nbody\u0000DISCONNECT\n\n\u0000");
+
+        assertEquals(2, frames.size());
+        assertSame(StompEncoderDecoder.MALFORMED_FRAME, frames.get(0));
+        assertEquals("DISCONNECT\n\n", frames.get(1));
+    }
+
+    @Test
+    public void encodesWithTerminator() {
+        StompEncoderDecoder codec = new StompEncoderDecoder();
+
+        assertArrayEquals("RECEIPT\nreceipt-id:1\n\n\u0000".getBytes(StandardCharsets.UTF_8),
+                codec.encode("RECEIPT\nreceipt-id:1\n\n"));
+        assertArrayEquals("MESSAGE\n\nגול\u0000".getBytes(StandardCharsets.UTF_8),
+                codec.encode("MESSAGE\n\nגול"));
+    }
+}
@@ -0,0 +1,302 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End to end: real servers on local sockets
+ */
+public class StompServerTest {
+
+    private static Properties idleTimeout(long ms) {
+        Properties p = new Properties();
+        p.setProperty("stomp.heartbeat.idleTimeoutMs", Long.toString(ms));
+        return p;
+    }
+
+    @Test
+    public void reactorReapsSilentLoggedInClient() throws Exception {
+        reapsSilentLoggedInClient("reactor", "reap-reactor");
+    }
+
+    @Test
+    public void threadPerClientReapsSilentLoggedInClient() throws Exception {
+        reapsSilentLoggedInClient("tpc", "reap-tpc");
+    }
+
+    /**
+     * A client that sends no heart-beat header, as the course client does, and then goes quiet
+     */
+    private void reapsSilentLoggedInClient(String mode, String login) throws Exception {
+        try (TestServer server = new TestServer(mode, idleTimeout(500));
+             TestServer.Client client = server.connect()) {
+            client.login(login);
+            client.send("SUBSCRIBE", "", "destination:/" + login, "id:1");
+
+            assertTrue(client.closedWithin(5000));
+        }
+    }
+
+    @Test
+    public void serverSendsNoHeartbeatsWhenItsSendIntervalIsZero() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("stomp.heartbeat.sendMs", "0");
+        try (TestServer server = new TestServer("reactor", p);
+             TestServer.Client client = server.connect()) {
+            client.send("CONNECT", "", "accept-version:1.2", "host:stomp.cs.bgu.ac.il", "login:beat-send", "passcode:pw",
+                    "heart-beat:0,100");
+            String connected = client.receive(5000);
+            assertNotNull(connected);
+            assertTrue(connected, connected.contains("heart-beat:0,"));
+
+            assertTrue(client.silentFor(1000));
+        }
+    }
+
+    @Test
+    public void serverExpectsNoHeartbeatsWhenItsReceiveIntervalIsZero() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("stomp.heartbeat.receiveMs", "0");
+        try (TestServer server = new TestServer("reactor", p);
+             TestServer.Client client = server.connect()) {
+            client.send("CONNECT", "", "accept-version:1.2", "host:stomp.cs.bgu.ac.il", "login:beat-receive", "passcode:pw",
+                    "heart-beat:100,0");
+            String connected = client.receive(5000);
+            assertNotNull(connected);
+            assertTrue(connected, connected.contains("heart-beat:10000,0\n"));
+
+            // a client that offered to beat every 100 ms and then does not is still let be
+            assertFalse(client.closedWithin(1000));
+        }
+    }
+
+    @Test
+    public void reactorTurnsAwayConnectWhenOverloaded() throws Exception {
+        turnsAwayConnectWhenOverloaded("reactor", "busy-reactor");
+    }
+
+    @Test
+    public void threadPerClientTurnsAwayConnectWhenOverloaded() throws Exception {
+        turnsAwayConnectWhenOverloaded("tpc", "busy-tpc");
+    }
+
+    /**
+     * A negative threshold makes any backlog, even an empty one, too much
+     */
+    private void turnsAwayConnectWhenOverloaded(String mode, String login) throws Exception {
+        Properties p = new Properties();
+        p.setProperty("stomp.admission.maxBacklog", "-1");
+        try (TestServer server = new TestServer(mode, p);
+             TestServer.Client client = server.connect()) {
+            client.send("CONNECT", "", "accept-version:1.2", "host:stomp.cs.bgu.ac.il", "login:" + login, "passcode:pw");
+            String reply = client.receive(5000);
+            assertNotNull(reply);
+            assertTrue(reply, reply.startsWith("ERROR") && reply.contains("Server busy"));
+        }
+    }
+
+    @Test
+    public void threadPerClientDropsSubscriberThatStopsReading() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("stomp.server.writerThreads", "1");
+        p.setProperty("stomp.server.maxOutboundFrames", "20");
+        p.setProperty("stomp.socket.sendBuffer", "4096");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 32 * 1024; i++) {
+            body.append('x');
+        }
+        try (TestServer server = new TestServer("tpc", p);
+             TestServer.Client stalled = server.connect();
+             TestServer.Client publisher = server.connect()) {
+            stalled.login("stalled");
+            stalled.send("SUBSCRIBE", "", "destination:/stall", "id:1");
+            publisher.login("publisher");
+            // senders must be subscribed; the selector keeps the publisher's own copies away from it
+            publisher.send("SUBSCRIBE", "", "destination:/stall", "id:1", "selector:nobody = 'here'");
+            for (int i = 0; i < 400; i++) {
+                publisher.send("SEND", body.toString(), "destination:/stall");
+            }
+            // the only writer is stuck on the stalled socket until that connection is dropped
+            publisher.send("DISCONNECT", "", "receipt:done");
+            String receipt = publisher.receive(10000);
+            assertNotNull(receipt);
+            assertTrue(receipt, receipt.startsWith("RECEIPT"));
+            assertTrue(stalled.closedWithin(5000));
+        }
+    }
+
+    @Test
+    public void threadPerClientKeepsWritingPastMoreStalledReadersThanWriters() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("stomp.server.writerThreads", "1");
+        p.setProperty("stomp.server.writeTimeoutMs", "500");
+        p.setProperty("stomp.socket.sendBuffer", "4096");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 32 * 1024; i++) {
+            body.append('x');
+        }
+        try (TestServer server = new TestServer("tpc", p);
+             TestServer.Client stalled1 = server.connect();
+             TestServer.Client stalled2 = server.connect();
+             TestServer.Client stalled3 = server.connect();
+             TestServer.Client reader = server.connect();
+             TestServer.Client publisher = server.connect()) {
+            TestServer.Client[] stalled = {stalled1, stalled2, stalled3};
+            for (int i = 0; i < stalled.length; i++) {
+                stalled[i].login("stalled-" + i);
+                stalled[i].send("SUBSCRIBE", "", "destination:/flood", "id:1");
+            }
+            reader.login("reader");
+            reader.send("SUBSCRIBE", "", "destination:/quiet", "id:1", "receipt:r");
+            assertNotNull(reader.receive(5000));
+            publisher.login("flooder");
+            publisher.send("SUBSCRIBE", "", "destination:/flood", "id:1", "selector:nobody = 'here'");
+            publisher.send("SUBSCRIBE", "", "destination:/quiet", "id:2", "selector:nobody = 'here'");
+            for (int i = 0; i < 400; i++) {
+                publisher.send("SEND", body.toString(), "destination:/flood");
+            }
+            // none of them read and none of them is idle, yet the one writer must get to the reader
+            publisher.send("SEND", "ping", "destination:/quiet");
+            assertEquals("ping", nextMessageBody(reader, 15000));
+            for (TestServer.Client client : stalled) {
+                assertTrue(client.closedWithin(5000));
+            }
+        }
+    }
+
+    private static String nextMessageBody(TestServer.Client client) throws Exception {
+        return nextMessageBody(client, 5000);
+    }
+
+    /**
+     * @return the body of the next MESSAGE, skipping receipts
+     */
+    private static String nextMessageBody(TestServer.Client client, int timeoutMs) throws Exception {
+        String frame;
+        do {
+            frame = client.receive(timeoutMs);
+            assertNotNull(frame);
+        } while (frame.startsWith("RECEIPT"));
+        assertTrue(frame, frame.startsWith("MESSAGE"));
+        return frame.substring(frame.indexOf("\n\n") + 2);
+    }
+
+    @Test
+    public void commitDeliversInSendOrderAcrossAckModes() throws Exception {
+        try (TestServer server = new TestServer("reactor", new Properties());
+             TestServer.Client client = server.connect()) {
+            client.login("tx-order");
+            client.send("SUBSCRIBE", "", "destination:/tx-auto", "id:1");
+            client.send("SUBSCRIBE", "", "destination:/tx-client", "id:2", "ack:client");
+            client.send("BEGIN", "", "transaction:t1");
+            client.send("SEND", "first", "destination:/tx-auto", "transaction:t1");
+            client.send("SEND", "second", "destination:/tx-client", "transaction:t1");
+            client.send("SEND", "third", "destination:/tx-auto", "transaction:t1");
+            assertNull(client.receive(300));
+
+            client.send("COMMIT", "", "transaction:t1", "receipt:c1");
+            assertEquals("first", nextMessageBody(client));
+            assertEquals("second", nextMessageBody(client));
+            assertEquals("third", nextMessageBody(client));
+        }
+    }
+
+    @Test
+    public void abortDropsTheTransactionsSends() throws Exception {
+        try (TestServer server = new TestServer("reactor", new Properties());
+             TestServer.Client client = server.connect()) {
+            client.login("tx-abort");
+            client.send("SUBSCRIBE", "", "destination:/tx-abort", "id:1");
+            client.send("BEGIN", "", "transaction:t1");
+            client.send("SEND", "dropped", "destination:/tx-abort", "transaction:t1");
+            client.send("ABORT", "", "transaction:t1", "receipt:a1");
+            String receipt = client.receive(5000);
+            assertNotNull(receipt);
+            assertTrue(receipt, receipt.startsWith("RECEIPT"));
+
+            client.send("SEND", "kept", "destination:/tx-abort");
+            assertEquals("kept", nextMessageBody(client));
+            // the transaction is gone with the abort
+            client.send("COMMIT", "", "transaction:t1");
+            String error = client.receive(5000);
+            assertNotNull(error);
+            assertTrue(error, error.startsWith("ERROR"));
+        }
+    }
+
+    @Test
+    public void reactorTakesBinaryFramesSentBehindConnect() throws Exception {
+        binaryFramesBehindConnect("reactor", "binary-reactor");
+    }
+
+    @Test
+    public void threadPerClientTakesBinaryFramesSentBehindConnect() throws Exception {
+        binaryFramesBehindConnect("tpc", "binary-tpc");
+    }
+
+    /**
+     * Frames that arrive while the CONNECT waits for the database are held in parsed form; the ERROR for
+     * the last one quotes it back, written out from its fields
+     */
+    private void binaryFramesBehindConnect(String mode, String login) throws Exception {
+        BinaryStompEncoderDecoder codec = new BinaryStompEncoderDecoder();
+        try (TestServer server = new TestServer(mode, new Properties());
+             Socket sock = server.socket()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(BinaryStompEncoderDecoder.PREAMBLE);
+            out.write(codec.encode("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + login + "\npasscode:pw\n\n"));
+            out.write(codec.encode("SUBSCRIBE\ndestination:/" + login + "\nid:1\nreceipt:r1\n\n"));
+            out.write(codec.encode("SEND\ndestination:/" + login + "\n\nbinary body"));
+            out.write(codec.encode("MESSAGE\ndestination:/nowhere\n\n"));
+            sock.getOutputStream().write(out.toByteArray());
+            sock.setSoTimeout(5000);
+            InputStream in = sock.getInputStream();
+
+            String connected = nextBinaryFrame(codec, in);
+            assertTrue(connected, connected.startsWith("CONNECTED"));
+            // receipts and errors may overtake queued messages
+            List<String> frames = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                frames.add(nextBinaryFrame(codec, in));
+            }
+            assertTrue(frames.toString(), frames.contains("RECEIPT\nreceipt-id:r1\n\n"));
+            assertTrue(frames.toString(), frames.stream().anyMatch(f -> f.startsWith("MESSAGE") && f.endsWith("\n\nbinary body")));
+            assertTrue(frames.toString(), frames.stream().anyMatch(f -> f.startsWith("ERROR") && f.contains("MESSAGE\ndestination:/nowhere\n")));
+        }
+    }
+
+    private static String nextBinaryFrame(BinaryStompEncoderDecoder codec, InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (codec.decodeNextByte((byte) b) == FrameParser.PARSED) return codec.frame().toString();
+        }
+        throw new IOException("closed by the server");
+    }
+
+    @Test
+    public void activeClientWithoutHeartbeatsStays() throws Exception {
+        try (TestServer server = new TestServer("reactor", idleTimeout(500));
+             TestServer.Client client = server.connect()) {
+            client.login("chatty");
+            for (int i = 0; i < 8; i++) {
+                Thread.sleep(200);
+                client.send("SUBSCRIBE", "", "destination:/chatty", "id:1", "receipt:" + i);
+                assertTrue(client.receive(2000).startsWith("RECEIPT"));
+            }
+            assertFalse(client.closedWithin(200));
+        }
+    }
+}
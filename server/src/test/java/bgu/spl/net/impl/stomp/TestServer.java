@@ -0,0 +1,191 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * A STOMP server on a free local port, for tests that talk to it over sockets
+ */
+final class TestServer implements Closeable {
+
+    private static boolean databaseChosen = false;
+
+    final int port;
+    private final Server<String> server;
+    private final Thread thread;
+
+    /**
+     * @param mode       "reactor" or "tpc"
+     * @param properties server configuration on top of the defaults
+     */
+    TestServer(String mode, Properties properties) throws IOException {
+        useEmbeddedDatabase();
+        File file = File.createTempFile("stomp-test", ".properties");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+        ServerConfig config = ServerConfig.load(file.getPath());
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = "tpc".equals(mode)
+                ? Server.threadPerClient(config, port, StompMessagingProtocolImpl::new,
+                () -> new NegotiatingEncoderDecoder(config.maxFrameSize))
+                : Server.reactor(config, port, StompMessagingProtocolImpl::new,
+                () -> new NegotiatingEncoderDecoder(config.maxFrameSize));
+        thread = new Thread(server::serve, "TestServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Every test server of the JVM shares one embedded database in a scratch directory
+     */
+    private static synchronized void useEmbeddedDatabase() throws IOException {
+        if (databaseChosen) return;
+        File dir = Files.createTempDirectory("stomp-test-db").toFile();
+        dir.deleteOnExit();
+        System.setProperty("stomp.embedded.dir", dir.getPath());
+        Database.use(Database.EMBEDDED);
+        databaseChosen = true;
+    }
+
+    /**
+     * @return a client connected to the server, retrying while it starts up
+     */
+    Client connect() throws IOException, InterruptedException {
+        return new Client(socket());
+    }
+
+    /**
+     * @return a bare socket connected to the server, retrying while it starts up
+     */
+    Socket socket() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException ex) {
+                if (attempt == 50) throw ex;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * A text-mode STOMP client
+     */
+    static final class Client implements Closeable {
+        private final Socket sock;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private Client(Socket sock) throws IOException {
+            this.sock = sock;
+            this.in = sock.getInputStream();
+            this.out = sock.getOutputStream();
+        }
+
+        /**
+         * @param headers name:value lines
+         */
+        void send(String command, String body, String... headers) throws IOException {
+            StringBuilder frame = new StringBuilder(command).append('\n');
+            for (String header : headers) {
+                frame.append(header).append('\n');
+            }
+            frame.append('\n').append(body).append('\0');
+            out.write(frame.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * Logs in as {@code login} and waits for CONNECTED
+         */
+        void login(String login) throws IOException {
+            send("CONNECT", "", "accept-version:1.2", "host:stomp.cs.bgu.ac.il", "login:" + login, "passcode:pw");
+            String connected = receive(5000);
+            if (connected == null || !connected.startsWith("CONNECTED")) {
+                throw new IOException("login failed: " + connected);
+            }
+        }
+
+        /**
+         * @return the next frame without its terminator, null on timeout
+         * @throws IOException also when the server closed the connection
+         */
+        String receive(int timeoutMs) throws IOException {
+            sock.setSoTimeout(timeoutMs);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            try {
+                while (true) {
+                    int b = in.read();
+                    if (b < 0) throw new IOException("closed by the server");
+                    if (b == 0) break;
+                    // heart-beats between frames
+                    if (b == '\n' && frame.size() == 0) continue;
+                    frame.write(b);
+                }
+            } catch (SocketTimeoutException ex) {
+                return null;
+            }
+            return new String(frame.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return true if not a byte, heart-beats included, arrives within the time
+         */
+        boolean silentFor(int ms) throws IOException {
+            sock.setSoTimeout(ms);
+            try {
+                return in.read() < 0;
+            } catch (SocketTimeoutException ex) {
+                return true;
+            }
+        }
+
+        /**
+         * @return true if the server closes the connection within the timeout; frames before that are skipped
+         */
+        boolean closedWithin(int timeoutMs) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            sock.setSoTimeout(timeoutMs);
+            try {
+                while (System.currentTimeMillis() < deadline) {
+                    if (in.read() < 0) return true;
+                }
+            } catch (SocketTimeoutException ex) {
+                return false;
+            } catch (IOException ex) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            sock.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TopicTrieTest {
+
+    private final TopicTrie trie = new TopicTrie();
+    private int nextConnection = 0;
+
+    private Subscription subscribe(String destination) {
+        Subscription sub = new Subscription(nextConnection++, "1", destination, null, false);
+        trie.add(sub);
+        return sub;
+    }
+
+    private static List<String> destinations(List<Subscription> subs) {
+        List<String> out = new ArrayList<>();
+        for (Subscription sub : subs) {
+            out.add(sub.destination);
+        }
+        out.sort(null);
+        return out;
+    }
+
+    @Test
+    public void matchesExactAndWildcardDestinations() {
+        subscribe("/games/usa_mexico");
+        subscribe("/games/*");
+        subscribe("/games/#");
+        subscribe("/#");
+        subscribe("/other");
+
+        List<String> matched = destinations(trie.match("/games/usa_mexico"));
+        List<String> expected = new ArrayList<>();
+        expected.add("/#");
+        expected.add("/games/#");
+        expected.add("/games/*");
+        expected.add("/games/usa_mexico");
+        assertEquals(expected, matched);
+    }
+
+    @Test
+    public void singleLevelWildcardMatchesExactlyOneLevel() {
+        subscribe("/a/*");
+
+        assertEquals(1, trie.match("/a/b").size());
+        assertEquals(0, trie.match("/a").size());
+        assertEquals(0, trie.match("/a/b/c").size());
+    }
+
+    @Test
+    public void multiLevelWildcardMatchesNoneOrMoreLevels() {
+        subscribe("/a/#");
+
+        assertEquals(1, trie.match("/a").size());
+        assertEquals(1, trie.match("/a/b").size());
+        assertEquals(1, trie.match("/a/b/c").size());
+        assertEquals(0, trie.match("/b").size());
+    }
+
+    @Test
+    public void validatesPatterns() {
+        assertTrue(TopicTrie.isValidPattern("/a/#"));
+        assertFalse(TopicTrie.isValidPattern("/a/#/b"));
+        assertTrue(TopicTrie.isPattern("/a/*/c"));
+        assertFalse(TopicTrie.isPattern("/a/b"));
+        assertTrue(TopicTrie.matches("/a/*/c", "/a/b/c"));
+        assertFalse(TopicTrie.matches("/a/*/c", "/a/b/d"));
+    }
+
+    @Test
+    public void cacheSeesNewAndRemovedSubscriptions() {
+        assertEquals(0, trie.match("/a/b").size());
+        Subscription exact = subscribe("/a/b");
+        assertEquals(1, trie.match("/a/b").size());
+        Subscription wildcard = subscribe("/a/*");
+        assertEquals(2, trie.match("/a/b").size());
+
+        trie.remove(wildcard);
+        assertEquals(1, trie.match("/a/b").size());
+        trie.remove(exact);
+        assertEquals(0, trie.match("/a/b").size());
+    }
+
+    @Test
+    public void wildcardChangeKeepsUnrelatedCacheEntries() {
+        subscribe("/a/b");
+        subscribe("/x/y");
+        List<Subscription> unrelated = trie.match("/a/b");
+        List<Subscription> related = trie.match("/x/y");
+
+        subscribe("/x/#");
+
+        assertSame(unrelated, trie.match("/a/b"));
+        assertNotSame(related, trie.match("/x/y"));
+        assertEquals(2, trie.match("/x/y").size());
+    }
+
+    @Test
+    public void prunesNodesLeftEmpty() {
+        Subscription deep = subscribe("/a/b/c/d");
+        Subscription sibling = subscribe("/a/b/e");
+        Subscription wildcard = subscribe("/a/#");
+        assertEquals(7, trie.size());
+
+        trie.remove(deep);
+        // "" -> a -> b -> e and a -> #
+        assertEquals(5, trie.size());
+        trie.remove(sibling);
+        trie.remove(wildcard);
+        assertEquals(0, trie.size());
+        assertEquals(0, trie.match("/a/b/c/d").size());
+    }
+
+    @Test
+    public void keepsNodesStillInUse() {
+        Subscription parent = subscribe("/a");
+        Subscription child = subscribe("/a/b");
+
+        trie.remove(child);
+        assertEquals(1, trie.match("/a").size());
+        trie.remove(parent);
+        assertEquals(0, trie.size());
+    }
+}
@@ -0,0 +1,94 @@
+package bgu.spl.net.srv;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatMonitorTest {
+
+    private TimingWheel wheel;
+    private final AtomicInteger beats = new AtomicInteger();
+    private final CountDownLatch expired = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel(10, 64);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    private HeartbeatMonitor monitor(long idleTimeoutMs) {
+        return new HeartbeatMonitor(wheel, idleTimeoutMs, beats::incrementAndGet, expired::countDown);
+    }
+
+    @Test
+    public void silentConnectionExpiresAfterIdleTimeout() throws InterruptedException {
+        monitor(100).start();
+
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void peerWithoutHeartbeatsKeepsTheIdleTimeout() throws InterruptedException {
+        HeartbeatMonitor monitor = monitor(150);
+        monitor.start();
+        // what CONNECT without a heart-beat header negotiates
+        monitor.configure(0, 0);
+
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readsKeepTheConnectionAlive() throws InterruptedException {
+        HeartbeatMonitor monitor = monitor(100);
+        monitor.start();
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(40);
+            monitor.onRead();
+        }
+
+        assertFalse(expired.await(0, TimeUnit.MILLISECONDS));
+        monitor.stop();
+    }
+
+    @Test
+    public void negotiatedIntervalReplacesIdleTimeout() throws InterruptedException {
+        HeartbeatMonitor monitor = monitor(60000);
+        monitor.start();
+        monitor.configure(0, 50);
+
+        // two missed intervals make the peer dead
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendsHeartbeatsWhileIdle() throws InterruptedException {
+        HeartbeatMonitor monitor = monitor(0);
+        monitor.start();
+        monitor.configure(50, 0);
+        Thread.sleep(300);
+        monitor.stop();
+
+        assertTrue(beats.get() >= 2);
+        assertFalse(expired.await(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void stoppedMonitorNeverExpires() throws InterruptedException {
+        HeartbeatMonitor monitor = monitor(50);
+        monitor.start();
+        monitor.stop();
+
+        assertFalse(expired.await(300, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,167 @@
+package bgu.spl.net.srv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IntHashMapTest {
+
+    @Test
+    public void putGetAndRemove() {
+        IntHashMap<String> map = new IntHashMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.putIfAbsent(1, "c"));
+        assertNull(map.putIfAbsent(-7, "d"));
+        assertEquals(2, map.size());
+
+        assertEquals("b", map.remove(1));
+        assertNull(map.get(1));
+        assertNull(map.remove(1));
+        assertEquals("d", map.get(-7));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void conditionalRemoveComparesWithEquals() {
+        IntHashMap<String> map = new IntHashMap<>();
+        map.put(3, "value");
+
+        assertFalse(map.remove(3, "other"));
+        assertFalse(map.remove(3, null));
+        assertEquals("value", map.get(3));
+        assertTrue(map.remove(3, new String("value")));
+        assertNull(map.get(3));
+    }
+
+    @Test
+    public void computeAddsUpdatesAndRemoves() {
+        IntHashMap<Integer> map = new IntHashMap<>();
+        assertEquals(1, (int) map.compute(5, v -> v == null ? 1 : v + 1));
+        assertEquals(2, (int) map.compute(5, v -> v == null ? 1 : v + 1));
+        assertNull(map.compute(5, v -> null));
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullValues() {
+        new IntHashMap<String>().put(1, null);
+    }
+
+    @Test
+    public void deletingKeepsCollidingKeysReachable() {
+        IntHashMap<Integer> map = new IntHashMap<>();
+        // enough keys that every segment's probe runs wrap around and cross each other
+        for (int k = 0; k < 5000; k++) {
+            map.put(k, k);
+        }
+        for (int k = 0; k < 5000; k += 3) {
+            assertEquals(k, (int) map.remove(k));
+        }
+        for (int k = 0; k < 5000; k++) {
+            if (k % 3 == 0) {
+                assertNull(map.get(k));
+            } else {
+                assertEquals(k, (int) map.get(k));
+            }
+        }
+    }
+
+    @Test
+    public void growsAndShrinksBackWithoutLosingEntries() {
+        IntHashMap<Integer> map = new IntHashMap<>();
+        for (int k = 0; k < 100000; k++) {
+            map.put(k, k);
+        }
+        assertEquals(100000, map.size());
+        for (int k = 0; k < 99990; k++) {
+            map.remove(k);
+        }
+        assertEquals(10, map.size());
+        assertEquals(10, map.values().size());
+        for (int k = 99990; k < 100000; k++) {
+            assertEquals(k, (int) map.get(k));
+        }
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(1);
+        IntHashMap<Integer> map = new IntHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // a narrow key range later on keeps deleting into tables that shrink under it
+            int key = random.nextInt(i < 100000 ? 20000 : 300) - 150;
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                case 2:
+                    assertEquals(expected.get(key), map.get(key));
+                    break;
+                default:
+                    Integer current = expected.get(key);
+                    Integer probe = current != null && random.nextBoolean() ? current : Integer.valueOf(-1);
+                    boolean removes = probe.equals(current);
+                    if (removes) expected.remove(key);
+                    assertEquals(removes, map.remove(key, probe));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void readersAlwaysSeeStableKeysWhileOthersChurn() throws InterruptedException {
+        IntHashMap<String> map = new IntHashMap<>();
+        for (int k = 0; k < 20000; k += 2) {
+            map.put(k, "v" + k);
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong misses = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            Random random = new Random(t);
+            // odd keys come and go, resizing the segments under the readers
+            threads.add(new Thread(() -> {
+                while (!stop.get()) {
+                    int key = random.nextInt(40000) * 2 + 1;
+                    map.put(key, "x");
+                    map.remove(key);
+                }
+            }));
+        }
+        for (int t = 0; t < 2; t++) {
+            Random random = new Random(t + 10);
+            threads.add(new Thread(() -> {
+                while (!stop.get()) {
+                    int key = random.nextInt(10000) * 2;
+                    if (!("v" + key).equals(map.get(key))) misses.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        Thread.sleep(1000);
+        stop.set(true);
+        for (Thread t : threads) t.join();
+
+        assertEquals(0, misses.get());
+        assertEquals(10000, map.size());
+    }
+}
@@ -0,0 +1,81 @@
+package bgu.spl.net.srv;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServerConfigTest {
+
+    private final List<String> keys = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (String key : keys) {
+            System.clearProperty(key);
+        }
+    }
+
+    private void set(String key, String value) {
+        keys.add(key);
+        System.setProperty(key, value);
+    }
+
+    private void assertRejected(String key, String value) {
+        set(key, value);
+        try {
+            ServerConfig.defaults();
+            fail(key + "=" + value + " was accepted");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith(key + " "));
+        }
+        System.clearProperty(key);
+    }
+
+    @Test
+    public void defaultsAreValid() {
+        ServerConfig config = ServerConfig.defaults();
+        assertTrue(config.readBufferSize > 0);
+        assertTrue(config.maxFrameSize > 0);
+        assertTrue(config.workerThreads > 0);
+        assertEquals(30000, config.clusterLeaseMs);
+    }
+
+    @Test
+    public void rejectsEmptyBuffers() {
+        assertRejected("stomp.server.readBufferSize", "0");
+        assertRejected("stomp.server.maxFrameSize", "0");
+        assertRejected("stomp.socket.sendBuffer", "-1");
+    }
+
+    @Test
+    public void rejectsNegativeThreadsAndTimes() {
+        assertRejected("stomp.server.workerThreads", "-2");
+        assertRejected("stomp.server.writerThreads", "0");
+        assertRejected("stomp.heartbeat.idleTimeoutMs", "-1");
+        assertRejected("stomp.limit.user.bytesPerSec", "-0.5");
+    }
+
+    @Test
+    public void rejectsLeaseTooShortToRenew() {
+        assertRejected("stomp.cluster.leaseMs", "-1");
+        assertRejected("stomp.cluster.leaseMs", "2");
+        set("stomp.cluster.leaseMs", "3");
+        assertEquals(3, ServerConfig.defaults().clusterLeaseMs);
+    }
+
+    @Test
+    public void rejectsPortOutOfRange() {
+        assertRejected("stomp.cluster.port", "65536");
+    }
+
+    @Test
+    public void namesTheKeyOfAValueThatIsNotANumber() {
+        assertRejected("stomp.server.maxOutboundFrames", "lots");
+    }
+}
@@ -0,0 +1,78 @@
+package bgu.spl.net.srv;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        // 8 buckets of 10ms: anything past 80ms goes round the wheel more than once
+        wheel = new TimingWheel(10, 8);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void runsTaskNoEarlierThanItsDelay() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long start = System.currentTimeMillis();
+        wheel.schedule(() -> {
+            firedAt.set(System.currentTimeMillis());
+            ran.countDown();
+        }, 50);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(firedAt.get() - start >= 50 - 10);
+    }
+
+    @Test
+    public void waitsOutSeveralRoundsOfTheWheel() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        wheel.schedule(ran::countDown, 250);
+
+        assertFalse(ran.await(150, TimeUnit.MILLISECONDS));
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 250 - 10);
+    }
+
+    @Test
+    public void cancelledTimeoutNeverRuns() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 30);
+        timeout.cancel();
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 60);
+
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 0);
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(ran::countDown, 30);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+    }
+}